@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.SoarException;
+import org.jsoar.util.commands.SoarCommands;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures creating a bare Agent and sourcing a generated rule file into it,
+ * the cost every SOARPlugin pays on creation. jsoar compiles the productions
+ * into the rete of each agent, so there is no parsed form to share.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AgentCreationBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int rules;
+
+    private File rulesFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        rulesFile = File.createTempFile("rules", ".soar");
+        try (PrintWriter out = new PrintWriter(rulesFile, "UTF-8")) {
+            out.println("watch 0");
+            out.println("learn --off");
+            for (int i = 0; i < rules; i++) {
+                out.println("sp {propose*rule" + i);
+                out.println("   (state <s> ^io.input-link <il>)");
+                out.println("   (<il> ^SENSOR <sensor>)");
+                out.println("   (<sensor> ^VALUE" + i + " <v> > " + i + ")");
+                out.println("-->");
+                out.println("   (<s> ^operator <o> +)");
+                out.println("   (<o> ^name rule" + i + ")");
+                out.println("}");
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        rulesFile.delete();
+    }
+
+    @Benchmark
+    public Agent sourced() throws SoarException {
+        Agent agent = new Agent();
+        agent.setName("benchmark");
+        SoarCommands.source(agent.getInterpreter(), rulesFile.getAbsolutePath());
+        agent.dispose();
+        return agent;
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import br.unicamp.cst.representation.idea.Idea;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversions between CST and Soar: Idea to input-link WMEs for
+ * growing input links, output-link WMEs to Idea, JSON to Idea and output
+ * commands to Java beans.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SOARLinkBenchmark {
+
+    private static final String BEANS_PACKAGE = "br.unicamp.cst.bindings.soar";
+
+    @Param({"10", "100", "1000"})
+    public int inputLinkSize;
+
+    @Param({"false", "true"})
+    public boolean incrementalInputLink;
+
+    private SOARPlugin soarPlugin;
+    private SOARPlugin nestedPlugin;
+    private JsonObject jsonInput;
+    private Idea command;
+    private Idea nestedCommand;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        jsonInput = JsonParser.parseString(createJson(inputLinkSize)).getAsJsonObject();
+
+        soarPlugin = SOARPluginBenchmark.createPlugin("smartCar.soar");
+        soarPlugin.step();
+        command = soarPlugin.getOutputLinkIdea().getL().get(0);
+        soarPlugin.setIncrementalInputLink(incrementalInputLink);
+        soarPlugin.setInputLinkIdea((Idea) soarPlugin.createIdeaFromJson(jsonInput));
+
+        nestedPlugin = SOARPluginBenchmark.createPlugin("smartCarNested.soar");
+        nestedPlugin.step();
+        nestedCommand = nestedPlugin.getOutputLinkIdea().getL().get(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        soarPlugin.finalizeKernel();
+        nestedPlugin.finalizeKernel();
+    }
+
+    /**
+     * Builds an input link with a number of leaf values, spread over
+     * sensors of ten values each
+     */
+    static String createJson(int size) {
+        StringBuilder json = new StringBuilder("{\"InputLink\":{\"CURRENT_PERCEPTION\":{");
+        for (int i = 0; i < size; i++) {
+            if (i % 10 == 0) {
+                if (i > 0) json.append("},");
+                json.append("\"SENSOR").append(i / 10).append("\":{");
+            } else {
+                json.append(',');
+            }
+            if (i % 2 == 0) json.append("\"VALUE").append(i % 10).append("\":").append(i * 0.5);
+            else json.append("\"VALUE").append(i % 10).append("\":\"ON\"");
+        }
+        if (size > 0) json.append('}');
+        return json.append("}}}").toString();
+    }
+
+    @Benchmark
+    public Object processInputLink() {
+        soarPlugin.processInputLink();
+        return soarPlugin.getInputLinkIdentifier();
+    }
+
+    @Benchmark
+    public Idea processOutputLink() {
+        soarPlugin.setOutputLinkIdea(null); // Forces the output link to be materialized again
+        soarPlugin.processOutputLink();
+        return soarPlugin.getOutputLinkIdea();
+    }
+
+    @Benchmark
+    public Object createIdeaFromJson() {
+        return soarPlugin.createIdeaFromJson(jsonInput);
+    }
+
+    @Benchmark
+    public Object buildObject() {
+        return SoarBeanMapper.buildObject(command, BEANS_PACKAGE);
+    }
+
+    @Benchmark
+    public Object buildNestedObject() {
+        return SoarBeanMapper.buildObject(nestedCommand, BEANS_PACKAGE);
+    }
+}
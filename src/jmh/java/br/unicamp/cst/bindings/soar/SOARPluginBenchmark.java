@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import br.unicamp.cst.representation.idea.Idea;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of running the agent: a full step, a single phase with
+ * mstep and a batch of cycles with step(n), in both the default mode (agent
+ * initialized at every cycle) and the persistent-state mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SOARPluginBenchmark {
+
+    static final String SMARTCAR_INPUT = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+
+    @Param({"mac.soar", "smartCar.soar", "smartCarNested.soar"})
+    public String rules;
+
+    @Param({"false", "true"})
+    public boolean persistentState;
+
+    private SOARPlugin soarPlugin;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        soarPlugin = createPlugin(rules);
+        soarPlugin.setPersistentState(persistentState);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        soarPlugin.finalizeKernel();
+    }
+
+    static SOARPlugin createPlugin(String rules) {
+        SOARPlugin soarPlugin = new SOARPlugin("benchmark", new File("src/test/resources/" + rules), false);
+        JsonObject jsonInput = JsonParser.parseString(SMARTCAR_INPUT).getAsJsonObject();
+        soarPlugin.setInputLinkIdea((Idea) soarPlugin.createIdeaFromJson(jsonInput));
+        return soarPlugin;
+    }
+
+    @Benchmark
+    public Idea step() {
+        soarPlugin.step();
+        return soarPlugin.getOutputLinkIdea();
+    }
+
+    @Benchmark
+    public int mstep() {
+        soarPlugin.mstep();
+        return soarPlugin.getPhase();
+    }
+
+    @Benchmark
+    public int stepTenCycles() {
+        return soarPlugin.step(10);
+    }
+}
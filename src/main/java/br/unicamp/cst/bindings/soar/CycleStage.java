@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import org.jsoar.kernel.Phase;
+
+/**
+ * The parts of a SOARPlugin cycle whose latency is recorded
+ */
+public enum CycleStage {
+    /** Conversion of the input Idea or JSON into input-link WMEs */
+    INPUT_CONVERSION,
+    INPUT,
+    PROPOSE,
+    DECISION,
+    APPLY,
+    OUTPUT,
+    /** Conversion of the output-link WMEs into the output Idea */
+    OUTPUT_MATERIALIZATION;
+
+    /**
+     * Gets the stage a Soar phase is recorded under
+     *
+     * @param phase the Soar phase
+     * @return the stage, or null if the phase is not recorded
+     */
+    static CycleStage of(Phase phase) {
+        switch (phase) {
+            case INPUT: return INPUT;
+            case PROPOSE: return PROPOSE;
+            case DECISION: return DECISION;
+            case APPLY: return APPLY;
+            case OUTPUT: return OUTPUT;
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+/**
+ * What SOARPlugin does with new input-link WMEs past its input-link limit
+ */
+public enum InputLinkLimitPolicy {
+    /** Logs a warning and still adds the WMEs */
+    WARN,
+    /** Logs a warning and leaves the WMEs, with their subtrees, out of the input link */
+    REJECT
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin 
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import org.jsoar.kernel.io.InputWme;
+import org.jsoar.kernel.memory.Wme;
+import org.jsoar.kernel.symbols.Identifier;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mirror of one input-link WME, kept by SOARPlugin between cycles so that a new
+ * input Idea can be diffed against what is already in working memory.
+ *
+ * A node is either an identifier node (value == null, children allowed) or a
+ * leaf holding the converted value (Long, Double or String) of its WME.
+ * Children are indexed by name, so paths are looked up in O(path length).
+ *
+ * Nodes built with indexed() only index WMEs added some other way: they hold
+ * no InputWme and are never diffed or removed.
+ */
+class InputLinkNode {
+
+    private final String name;
+    private final Identifier identifier;
+    private final InputWme inputWme;
+    private final Wme wme;
+    private Object value;
+    private final List<InputLinkNode> children = new ArrayList<>();
+    private final Map<String, InputLinkNode> childrenByName = new HashMap<>(); // First child with each name
+    private boolean claimed;
+
+    /**
+     * Creates the root node, standing for the input-link identifier itself
+     *
+     * @param identifier the input-link identifier
+     */
+    InputLinkNode(Identifier identifier) {
+        this(null, identifier, null, null);
+    }
+
+    InputLinkNode(String name, Identifier identifier, InputWme inputWme, Object value) {
+        this(name, identifier, inputWme, inputWme, value);
+    }
+
+    private InputLinkNode(String name, Identifier identifier, InputWme inputWme, Wme wme, Object value) {
+        this.name = name;
+        this.identifier = identifier;
+        this.inputWme = inputWme;
+        this.wme = wme;
+        this.value = value;
+    }
+
+    /**
+     * Creates a node indexing a WME already in working memory
+     */
+    static InputLinkNode indexed(String name, Identifier identifier, Wme wme, Object value) {
+        return new InputLinkNode(name, identifier, null, wme, value);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Identifier getIdentifier() {
+        return identifier;
+    }
+
+    InputWme getInputWme() {
+        return inputWme;
+    }
+
+    Wme getWme() {
+        return wme;
+    }
+
+    Object getValue() {
+        return value;
+    }
+
+    void setValue(Object value) {
+        this.value = value;
+    }
+
+    boolean isIdentifierNode() {
+        return identifier != null;
+    }
+
+    List<InputLinkNode> getChildren() {
+        return children;
+    }
+
+    void addChild(InputLinkNode child) {
+        child.claimed = true;
+        children.add(child);
+        childrenByName.putIfAbsent(child.name, child);
+    }
+
+    /**
+     * Gets the first child with the given name
+     *
+     * @param childName attribute name
+     * @return the child, or null if there is none
+     */
+    InputLinkNode getChild(String childName) {
+        return childrenByName.get(childName);
+    }
+
+    /**
+     * Marks every child as not yet matched by the Idea being diffed
+     */
+    void beginUpdate() {
+        for (InputLinkNode child : children) child.claimed = false;
+    }
+
+    /**
+     * Finds the first unmatched child with the given name and kind and marks it
+     * as matched. The child at the same position is tried first, as input
+     * links usually keep their ordering from one cycle to the next.
+     *
+     * @param position position of the Idea among its siblings
+     * @param childName attribute name
+     * @param identifierNode whether the child must be an identifier node
+     * @return the matched child, or null if there is none
+     */
+    InputLinkNode claim(int position, String childName, boolean identifierNode) {
+        if (position < children.size()) {
+            InputLinkNode candidate = children.get(position);
+            if (candidate.matches(childName, identifierNode)) {
+                candidate.claimed = true;
+                return candidate;
+            }
+        }
+        if (!childrenByName.containsKey(childName)) return null;
+        for (InputLinkNode candidate : children) {
+            if (candidate.matches(childName, identifierNode)) {
+                candidate.claimed = true;
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(String childName, boolean identifierNode) {
+        return !claimed && isIdentifierNode() == identifierNode && name.equals(childName);
+    }
+
+    /**
+     * Removes from working memory the WMEs of every child that was not matched
+     * since the last call to beginUpdate()
+     *
+     * @return the number of WMEs removed
+     */
+    int removeUnclaimed() {
+        int removed = 0;
+        for (int i = children.size() - 1; i >= 0; i--) {
+            InputLinkNode child = children.get(i);
+            if (!child.claimed) {
+                removed += child.remove();
+                children.remove(i);
+            }
+        }
+        if (removed > 0) {
+            childrenByName.clear();
+            for (InputLinkNode child : children) childrenByName.putIfAbsent(child.name, child);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes this node's WME, and the WMEs of its whole subtree, from working memory
+     *
+     * @return the number of WMEs removed
+     */
+    int remove() {
+        int removed = 0;
+        for (InputLinkNode child : children) removed += child.remove();
+        children.clear();
+        childrenByName.clear();
+        if (inputWme != null) {
+            inputWme.remove();
+            removed++;
+        }
+        return removed;
+    }
+}
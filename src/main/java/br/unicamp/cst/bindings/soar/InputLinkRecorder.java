@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import br.unicamp.cst.representation.idea.Idea;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Appends each input a SOARPlugin commits to its input link to a compact
+ * binary log, with the number of decision cycles run on it, so the same
+ * perception sequence can be fed to an agent again with InputLinkReplayer.
+ * Attach it with SOARPlugin.setInputLinkRecorder().
+ *
+ * An input is kept in memory until the next one comes or the recorder is
+ * closed, as its cycles are only known then. flush() writes the inputs that
+ * are complete.
+ *
+ * The log starts with the MAGIC and VERSION ints, followed by one record per
+ * input: the record type, an int with the number of decision cycles run on the
+ * input, and the input: nothing for RECORD_EMPTY when there was no input, a
+ * string with the input-link JSON for RECORD_JSON, or the input Idea for
+ * RECORD_IDEA. An Idea is written as
+ * its name string, its type int, its tagged value and an int count of its
+ * children, each written the same way. Values are VALUE_NULL, VALUE_INTEGER and
+ * a long, VALUE_DOUBLE and a double, VALUE_BOOLEAN and a byte, or VALUE_STRING
+ * and a string; other values are written as strings, which the input link
+ * converts them to anyway. Strings are an int length in bytes and the UTF-8
+ * bytes, and numbers are big-endian.
+ *
+ * Ideas may hold cycles, so children deeper than the maximum depth are left out.
+ */
+public class InputLinkRecorder implements Closeable {
+
+    static final int MAGIC = 0x43535449; // "CSTI"
+    static final int VERSION = 2;
+
+    static final byte RECORD_EMPTY = 0;
+    static final byte RECORD_IDEA = 1;
+    static final byte RECORD_JSON = 2;
+
+    static final byte VALUE_NULL = 0;
+    static final byte VALUE_INTEGER = 1;
+    static final byte VALUE_DOUBLE = 2;
+    static final byte VALUE_BOOLEAN = 3;
+    static final byte VALUE_STRING = 4;
+
+    static final int MAX_DEPTH = 64;
+
+    private final DataOutputStream out;
+    private long records = 0;
+
+    // Input waiting for its cycle count
+    private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pending = new DataOutputStream(pendingBytes);
+    private byte pendingType;
+    private int pendingCycles;
+    private boolean hasPending = false;
+
+    /**
+     * Creates a recorder writing to a new log file, replacing it if it exists
+     *
+     * @param file the log file
+     * @throws IOException if the file cannot be created
+     */
+    public InputLinkRecorder(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * Creates a recorder writing to a stream, which it closes when closed
+     *
+     * @param stream the stream
+     * @throws IOException if the header cannot be written
+     */
+    public InputLinkRecorder(OutputStream stream) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Records the input of a cycle given as an Idea
+     *
+     * @param inputLinkIdea the input link Idea, or null if there was no input
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void record(Idea inputLinkIdea) throws IOException {
+        writePending();
+        if (inputLinkIdea == null) {
+            pendingType = RECORD_EMPTY;
+        } else {
+            pendingType = RECORD_IDEA;
+            writeIdea(inputLinkIdea, 0);
+        }
+        hasPending = true;
+        records++;
+    }
+
+    /**
+     * Records the input of a cycle given as JSON
+     *
+     * @param inputLinkJson the input link JSON, or null if there was no input
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void recordJson(String inputLinkJson) throws IOException {
+        writePending();
+        if (inputLinkJson == null) {
+            pendingType = RECORD_EMPTY;
+        } else {
+            pendingType = RECORD_JSON;
+            writeString(inputLinkJson);
+        }
+        hasPending = true;
+        records++;
+    }
+
+    /**
+     * Counts decision cycles run on the last input recorded
+     *
+     * @param cycles the number of cycles
+     */
+    synchronized void recordCycles(int cycles) {
+        if (hasPending) pendingCycles += cycles;
+    }
+
+    // Also drops what a failed record left in the buffer
+    private void writePending() throws IOException {
+        if (hasPending) {
+            out.writeByte(pendingType);
+            out.writeInt(pendingCycles);
+            pendingBytes.writeTo(out);
+        }
+        pendingBytes.reset();
+        pendingCycles = 0;
+        hasPending = false;
+    }
+
+    private void writeIdea(Idea idea, int depth) throws IOException {
+        writeString(idea.getName());
+        pending.writeInt(idea.getType());
+        writeValue(idea.getValue());
+        List<Idea> children = idea.getL();
+        if (depth >= MAX_DEPTH || children == null) {
+            pending.writeInt(0);
+            return;
+        }
+        pending.writeInt(children.size());
+        for (Idea child : children) writeIdea(child, depth + 1);
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            pending.writeByte(VALUE_NULL);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            pending.writeByte(VALUE_INTEGER);
+            pending.writeLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            pending.writeByte(VALUE_DOUBLE);
+            pending.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            pending.writeByte(VALUE_BOOLEAN);
+            pending.writeBoolean((Boolean) value);
+        } else {
+            pending.writeByte(VALUE_STRING);
+            writeString(value instanceof Enum ? ((Enum<?>) value).name() : value.toString());
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        pending.writeInt(bytes.length);
+        pending.write(bytes);
+    }
+
+    /**
+     * Gets the number of inputs recorded
+     *
+     * @return the number of records
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the last input with the cycles run on it so far and closes the log
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        writePending();
+        out.close();
+    }
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import br.unicamp.cst.representation.idea.Idea;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds a log written by InputLinkRecorder back to a SOARPlugin as fast as
+ * possible, running each recorded input for as many decision cycles as it was
+ * run for, and reports the throughput and the latency of the steps. The whole
+ * log is decoded before the first step, so reading it does not count in the
+ * figures. The plugin must be set up as the recorded one was, e.g. with the
+ * same persistent state setting.
+ */
+public class InputLinkReplayer {
+
+    /**
+     * Outcome of a replay
+     */
+    public static class Report {
+
+        private final long cycles;
+        private final long elapsedNanos;
+        private final LatencyHistogram.Snapshot latency;
+
+        Report(long cycles, long elapsedNanos, LatencyHistogram.Snapshot latency) {
+            this.cycles = cycles;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+        }
+
+        public long getCycles() {
+            return cycles;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Gets the throughput of the replay
+         *
+         * @return cycles per second
+         */
+        public double getCyclesPerSecond() {
+            return elapsedNanos <= 0 ? 0 : cycles * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Gets the latency of the steps
+         *
+         * @return the latency histogram, in nanoseconds
+         */
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("cycles=%d throughput=%.1f/s latency: %s", cycles, getCyclesPerSecond(), latency);
+        }
+    }
+
+    private final List<Object> records;
+    private final List<Integer> cycles = new ArrayList<>();
+
+    /**
+     * Loads a log file
+     *
+     * @param file the log file
+     * @throws IOException if the file cannot be read or is not an input-link log
+     */
+    public InputLinkReplayer(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    /**
+     * Loads a log from a stream, which is read to the end and closed
+     *
+     * @param stream the stream
+     * @throws IOException if the stream cannot be read or is not an input-link log
+     */
+    public InputLinkReplayer(InputStream stream) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            if (in.readInt() != InputLinkRecorder.MAGIC) throw new IOException("Not an input-link log");
+            int version = in.readInt();
+            if (version != InputLinkRecorder.VERSION) throw new IOException("Unsupported input-link log version " + version);
+            records = new ArrayList<>();
+            int record;
+            while ((record = in.read()) != -1) {
+                cycles.add(in.readInt());
+                switch (record) {
+                    case InputLinkRecorder.RECORD_EMPTY: records.add(null); break;
+                    case InputLinkRecorder.RECORD_IDEA: records.add(readIdea(in)); break;
+                    case InputLinkRecorder.RECORD_JSON: records.add(readString(in)); break;
+                    default: throw new IOException("Unknown record type " + record + " in input-link log");
+                }
+            }
+        }
+    }
+
+    private static Idea readIdea(DataInputStream in) throws IOException {
+        String name = readString(in);
+        int type = in.readInt();
+        Object value;
+        byte tag = in.readByte();
+        switch (tag) {
+            case InputLinkRecorder.VALUE_NULL: value = null; break;
+            case InputLinkRecorder.VALUE_INTEGER: value = in.readLong(); break;
+            case InputLinkRecorder.VALUE_DOUBLE: value = in.readDouble(); break;
+            case InputLinkRecorder.VALUE_BOOLEAN: value = in.readBoolean(); break;
+            case InputLinkRecorder.VALUE_STRING: value = readString(in); break;
+            default: throw new IOException("Unknown value tag " + tag + " in input-link log");
+        }
+        Idea idea = new Idea(name, value, type);
+        for (int i = in.readInt(); i > 0; i--) idea.add(readIdea(in));
+        return idea;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the number of inputs in the log
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Gets the number of decision cycles in the log
+     *
+     * @return the cycles run on all the recorded inputs
+     */
+    public long getCycles() {
+        long total = 0;
+        for (int recorded : cycles) total += recorded;
+        return total;
+    }
+
+    /**
+     * Runs the plugin on each recorded input: one step() for an input run for
+     * one cycle, step(n) for an input run for n cycles. An input run for no
+     * cycle is only committed to the input link.
+     *
+     * @param plugin the plugin to drive
+     * @return the throughput and latency of the replay, with one latency
+     *         sample per input
+     */
+    public Report replay(SOARPlugin plugin) {
+        LatencyHistogram latency = new LatencyHistogram();
+        long done = 0;
+        long replayStart = System.nanoTime();
+        for (int i = 0; i < records.size(); i++) {
+            Object record = records.get(i);
+            if (record instanceof String) plugin.setInputLinkJson((String) record);
+            else plugin.setInputLinkIdea((Idea) record);
+            int recorded = cycles.get(i);
+            long start = System.nanoTime();
+            if (recorded == 1) {
+                plugin.step();
+                done++;
+            } else if (recorded > 1) {
+                done += plugin.step(recorded);
+            } else {
+                synchronized (plugin) {
+                    plugin.processInputLink();
+                }
+            }
+            latency.record(System.nanoTime() - start);
+        }
+        long elapsed = System.nanoTime() - replayStart;
+        return new Report(done, elapsed, latency.snapshot());
+    }
+}
@@ -13,14 +13,13 @@ package br.unicamp.cst.bindings.soar;
 
 import br.unicamp.cst.core.entities.Codelet;
 import br.unicamp.cst.representation.idea.Idea;
-import com.google.common.primitives.Doubles;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.jsoar.kernel.symbols.Identifier;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.lang.reflect.Field;
+import java.time.Duration;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.logging.Level;
@@ -37,8 +36,6 @@ public abstract class JSoarCodelet extends Codelet {
 
     private SOARPlugin jsoar;
 
-    private static final String ARRAY = "ARRAY";
-
     public static final String OUTPUT_COMMAND_MO = "OUTPUT_COMMAND_MO";
     
     public void SilenceLoggers() {
@@ -51,30 +48,82 @@ public abstract class JSoarCodelet extends Codelet {
     }
 
 
-    public synchronized String getOutputLinkAsString(){
-        return getJsoar().getOutputLinkAsString();
+    /*
+     * The accessors below read the snapshot the plugin publishes after every
+     * cycle, so they never block the thread running the agent.
+     */
+
+    /**
+     * Gets the output link string of the last cycle
+     *
+     * @return the string, or null before the first cycle or if link strings
+     *         were turned off with setLinkStringsInSnapshots()
+     */
+    public String getOutputLinkAsString(){
+        SOARSnapshot snapshot = getJsoar().getCycleSnapshot();
+        return snapshot != null ? snapshot.getOutputLinkAsString() : null;
     }
 
-    public synchronized String getInputLinkAsString(){
-        return getJsoar().getInputLinkAsString();
+    /**
+     * Gets the input link string of the last cycle
+     *
+     * @return the string, or null before the first cycle or if link strings
+     *         were turned off with setLinkStringsInSnapshots()
+     */
+    public String getInputLinkAsString(){
+        SOARSnapshot snapshot = getJsoar().getCycleSnapshot();
+        return snapshot != null ? snapshot.getInputLinkAsString() : null;
     }
 
-    public synchronized int getPhase(){
-        return getJsoar().getPhase();
+    /**
+     * Sets whether the Soar agent renders its input and output link strings
+     * after every cycle, for getInputLinkAsString() and getOutputLinkAsString().
+     * They are rendered by default; turning them off saves rendering both
+     * links when only the output Idea is read.
+     *
+     * @param linkStringsInSnapshots true to render the link strings
+     */
+    public void setLinkStringsInSnapshots(boolean linkStringsInSnapshots){
+        getJsoar().setLinkStringsInSnapshots(linkStringsInSnapshots);
     }
 
-    public synchronized void setDebugState(int state){
+    /**
+     * Gets the phase the Soar agent stopped at after the last cycle or phase
+     *
+     * @return the phase, or -1 before the first cycle or between cycles
+     */
+    public int getPhase(){
+        SOARSnapshot snapshot = getJsoar().getCycleSnapshot();
+        return snapshot != null ? snapshot.getPhase() : -1;
+    }
+
+    public boolean isOutputLinkChanged(){
+        SOARSnapshot snapshot = getJsoar().getCycleSnapshot();
+        return snapshot != null && snapshot.isOutputLinkChanged();
+    }
+
+    public void setDebugState(int state){
         getJsoar().setDebugState(state);
     }
 
-    public synchronized int getDebugState(){
+    public int getDebugState(){
         return getJsoar().getDebugState();
     }
 
-    public synchronized ArrayList<Object> getOutputInObject(String package_with_beans_classes){
+    /**
+     * Gets the state of the Soar agent after its last cycle, without blocking
+     *
+     * @return the snapshot, or null before the first cycle
+     */
+    public SOARSnapshot getCycleSnapshot(){
+        return getJsoar().getCycleSnapshot();
+    }
+
+    public ArrayList<Object> getOutputInObject(String package_with_beans_classes){
 
         ArrayList<Object> commandList = null;
-        Idea ol = getJsoar().getOutputLinkIdea();
+        SOARSnapshot snapshot = getJsoar().getCycleSnapshot();
+        Idea ol = snapshot != null ? snapshot.getOutputLinkIdea() : getJsoar().getOutputLinkIdea();
 
         if(ol != null) {
             commandList = new ArrayList<>();
@@ -89,59 +138,40 @@ public abstract class JSoarCodelet extends Codelet {
     }
 
 
-    public synchronized Object buildObject(Idea command, String package_with_beans_classes){
-
-        ArrayList<Object> arrayList = new ArrayList<>();
-        String commandType = command.getName();
-        Object commandObject = null;
-        Class type = null;
-        if(!commandType.toUpperCase().contains(ARRAY)) {
-            try {
-                type = Class.forName(package_with_beans_classes + "." + commandType);
-                commandObject = type.newInstance();
-                type.cast(commandObject);
-
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            for (Idea p : command.getL()) {
-                try {
-                    for (Field field : type.getDeclaredFields()) {
-                        if (p.getName().equals(field.getName())) {
-                           if(p.getL().isEmpty()){
-                               Object value = p.getValue();
-                               if (Doubles.tryParse(value.toString()) != null) {
-                                   Double fvalue = Doubles.tryParse(value.toString());
-                                   field.set(commandObject, fvalue);
-                               }
-                               else {
-                                   field.set(commandObject, value.toString());
-                               }
-                           }
-                           else{
-                               for(Idea subP : p.getL()){
-                                   Object newObj = buildObject(subP, package_with_beans_classes);
-
-                                   field.set(commandObject, newObj);
-                               }
-                           }
-
-
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Registers a handler called once for each new command of a bean class on
+     * the output link, instead of polling getOutputInObject() every cycle
+     *
+     * @param type the bean class, whose simple name is the command name
+     * @param handler the handler, called on the thread running the agent
+     * @param <T> the bean class
+     */
+    public <T> void addCommandHandler(Class<T> type, SoarCommandHandler<? super T> handler){
+        getJsoar().addCommandHandler(type, handler);
+    }
 
-            }
-        }
+    public boolean removeCommandHandler(SoarCommandHandler<?> handler){
+        return getJsoar().removeCommandHandler(handler);
+    }
 
-        return arrayList.size() > 0 ? arrayList : commandObject;
+    public Object buildObject(Idea command, String package_with_beans_classes){
+        return SoarBeanMapper.buildObject(command, package_with_beans_classes);
     }
 
     public List<Identifier> getOperatorsPathList(){
         return getJsoar().getOperatorsPathList();
     }
+
+    /**
+     * Drains the operators traced since the last call, without blocking the agent
+     *
+     * @param consumer receives each traced operator
+     * @return the number of operators drained, 0 if tracing is off
+     */
+    public int drainOperatorTrace(OperatorTraceConsumer consumer){
+        OperatorTrace trace = getJsoar().getOperatorTrace();
+        return trace != null ? trace.drain(consumer) : 0;
+    }
     
     public void addToJson(JsonObject newBranch, JsonObject json, String property){
         json.add(property, newBranch);
@@ -151,9 +181,70 @@ public abstract class JSoarCodelet extends Codelet {
         getJsoar().setInputLinkIdea((Idea)getJsoar().createIdeaFromJson(json));
     }
     
+    /**
+     * Sets the input link from a JSON string, streamed straight into WMEs
+     *
+     * @param json the JSON document, e.g. {"InputLink":{...}}
+     */
+    public void setInputLinkJson(String json){
+        getJsoar().setInputLinkJson(json);
+    }
+
     public void setInputLinkIdea(Idea wo){
         getJsoar().setInputLinkIdea(wo);
     }
+
+    /**
+     * Runs several Soar decision cycles with a single input-link commit
+     *
+     * @param cycles number of decision cycles to run
+     * @return the number of decision cycles actually run
+     */
+    public int runSoarCycles(int cycles){
+        return getJsoar().step(cycles);
+    }
+
+    /**
+     * Runs the current Soar cycle within a time budget, resuming it on the
+     * next call if the budget runs out
+     *
+     * @param budget the time allowed for this call
+     * @return true if the cycle completed
+     */
+    public boolean runSoarWithin(Duration budget){
+        return getJsoar().step(budget);
+    }
+
+    /**
+     * Starts running the Soar agent on its own thread. The codelet then only
+     * publishes input with publishInputLinkIdea() and picks up the latest
+     * completed output with getLatestOutput().
+     */
+    public void startAsyncSoar(){
+        getJsoar().startAsync();
+    }
+
+    public void stopAsyncSoar(){
+        getJsoar().stopAsync();
+    }
+
+    public void publishInputLinkIdea(Idea wo){
+        getJsoar().publishInput(wo);
+    }
+
+    public SOARSnapshot getLatestOutput(){
+        return getJsoar().getLatestOutput();
+    }
+
+    /**
+     * Gets the latency histograms of each part of the Soar cycle
+     *
+     * @return an immutable snapshot of every histogram, in nanoseconds
+     */
+    public Map<CycleStage, LatencyHistogram.Snapshot> getLatencySnapshot(){
+        return getJsoar().getLatencySnapshot();
+    }
+
     public String getAgentName() {
         return agentName;
     }
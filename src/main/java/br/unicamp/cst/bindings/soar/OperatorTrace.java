@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import org.jsoar.kernel.symbols.Identifier;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring buffer of the operators applied by an agent, as (cycle, goal,
+ * operator) entries. All storage is allocated up front, so recording never
+ * creates garbage. There is a single producer, the thread stepping the agent,
+ * and readers drain the entries without taking any lock the agent uses. When
+ * readers fall behind, the oldest entries are overwritten and counted as
+ * dropped.
+ */
+public class OperatorTrace {
+
+    private final int mask;
+    private final long[] cycles;
+    private final Identifier[] goals;
+    private final Identifier[] operators;
+    private final AtomicLongArray stamps; // Sequence number held by each slot, -1 while it is written
+
+    private final AtomicLong published = new AtomicLong(); // Entries written so far
+    private long readCursor = 0; // Next entry drain(consumer) reads
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a trace
+     *
+     * @param capacity number of entries kept, rounded up to a power of two
+     */
+    public OperatorTrace(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        mask = size - 1;
+        cycles = new long[size];
+        goals = new Identifier[size];
+        operators = new Identifier[size];
+        stamps = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) stamps.set(i, -1);
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Records an entry. Must only be called by the producer thread.
+     *
+     * @param cycle the cycle number
+     * @param goal the state
+     * @param operator the operator
+     */
+    public void record(long cycle, Identifier goal, Identifier operator) {
+        long sequence = published.get();
+        int index = (int) (sequence & mask);
+        stamps.set(index, -1);
+        VarHandle.storeStoreFence();
+        cycles[index] = cycle;
+        goals[index] = goal;
+        operators[index] = operator;
+        stamps.lazySet(index, sequence);
+        published.lazySet(sequence + 1); // Publishes the entry to readers
+    }
+
+    /**
+     * Drains the entries recorded since the last call, oldest first. Meant for
+     * one reader; several readers can each keep their own position with
+     * drain(long, OperatorTraceConsumer).
+     *
+     * @param consumer receives each entry
+     * @return the number of entries delivered
+     */
+    public synchronized int drain(OperatorTraceConsumer consumer) {
+        long end = published.get();
+        int delivered = deliver(readCursor, end, consumer);
+        readCursor = end;
+        return delivered;
+    }
+
+    /**
+     * Delivers the entries recorded from a position on, oldest first
+     *
+     * @param from the sequence number of the first entry wanted, 0 at first
+     * @param consumer receives each entry
+     * @return the sequence number to drain from next time
+     */
+    public long drain(long from, OperatorTraceConsumer consumer) {
+        long end = published.get();
+        deliver(from, end, consumer);
+        return end;
+    }
+
+    private int deliver(long from, long end, OperatorTraceConsumer consumer) {
+        int delivered = 0;
+        long sequence = Math.max(from, end - cycles.length);
+        if (sequence > from) dropped.addAndGet(sequence - from);
+        for (; sequence < end; sequence++) {
+            int index = (int) (sequence & mask);
+            if (stamps.get(index) != sequence) { // Already overwritten by the producer
+                dropped.incrementAndGet();
+                continue;
+            }
+            long cycle = cycles[index];
+            Identifier goal = goals[index];
+            Identifier operator = operators[index];
+            VarHandle.loadLoadFence();
+            if (stamps.get(index) != sequence) { // Overwritten while it was read
+                dropped.incrementAndGet();
+                continue;
+            }
+            consumer.accept(cycle, goal, operator);
+            delivered++;
+        }
+        return delivered;
+    }
+
+    /**
+     * Gets the number of entries recorded since the trace was created
+     *
+     * @return the number of entries
+     */
+    public long getRecorded() {
+        return published.get();
+    }
+
+    /**
+     * Gets the number of entries overwritten before a reader drained them,
+     * summed over every reader
+     *
+     * @return the number of entries
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import org.jsoar.kernel.symbols.Identifier;
+
+/**
+ * Receives the entries drained from an OperatorTrace
+ */
+@FunctionalInterface
+public interface OperatorTraceConsumer {
+
+    /**
+     * Receives one traced operator
+     *
+     * @param cycle the SOARPlugin cycle the operator was applied in
+     * @param goal the state the operator was selected for
+     * @param operator the operator identifier
+     */
+    void accept(long cycle, Identifier goal, Identifier operator);
+}
@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import org.jsoar.kernel.memory.Wme;
+import org.jsoar.kernel.symbols.DoubleSymbol;
+import org.jsoar.kernel.symbols.Identifier;
+import org.jsoar.kernel.symbols.IntegerSymbol;
+import org.jsoar.kernel.symbols.StringSymbol;
+import org.jsoar.kernel.symbols.Symbol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the WMEs under an identifier straight to JSON or to a compact binary
+ * form, with no intermediate Idea. Used by SOARPlugin to ship the output link.
+ *
+ * In JSON, every identifier becomes an object and attributes that repeat under
+ * the same identifier become arrays. In the binary form, every identifier is
+ * written as TAG_OBJECT, an int with its number of WMEs and then, for each WME,
+ * the attribute as a string followed by the tagged value:
+ * TAG_OBJECT, TAG_INTEGER and a long, TAG_DOUBLE and a double, or TAG_STRING,
+ * an int with the length in bytes and the UTF-8 bytes. Numbers are big-endian
+ * unless the buffer says otherwise.
+ *
+ * Working memory may share identifiers and hold cycles, so each identifier is
+ * written out once per call: other references to it, and identifiers deeper
+ * than the maximum depth, are written as a string holding the identifier name.
+ *
+ * The writer keeps its scratch buffers between calls, so once they have grown
+ * to the size of the output link it writes without allocating. It is not
+ * thread-safe.
+ */
+final class OutputLinkWriter {
+
+    static final byte TAG_OBJECT = 1;
+    static final byte TAG_INTEGER = 2;
+    static final byte TAG_DOUBLE = 3;
+    static final byte TAG_STRING = 4;
+
+    static final int MAX_DEPTH = 64;
+
+    // Identifiers already written in the current call
+    private final Set<Identifier> written = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Stack with the WMEs of the objects being written to JSON; for each WME,
+    // whether it is the first with its attribute and the position of the next
+    // one with the same attribute, or -1
+    private Wme[] wmes = new Wme[64];
+    private boolean[] firstOfAttribute = new boolean[64];
+    private int[] nextOfAttribute = new int[64];
+    private final Map<Symbol, Integer> lastOfAttribute = new IdentityHashMap<>();
+
+    private final StringBuilder json = new StringBuilder();
+    private ByteBuffer jsonBytes = ByteBuffer.allocate(256);
+
+    void writeJson(Identifier id, Appendable out) throws IOException {
+        written.clear();
+        written.add(id);
+        writeJsonObject(id, out, 0, 0);
+    }
+
+    /**
+     * Writes the JSON as UTF-8, encoded into a buffer kept between calls
+     */
+    void writeJson(Identifier id, OutputStream out) throws IOException {
+        json.setLength(0);
+        writeJson(id, json);
+        int size = 3 * json.length(); // At most 3 bytes per UTF-16 char
+        if (jsonBytes.capacity() < size) jsonBytes = ByteBuffer.allocate(Math.max(size, 2 * jsonBytes.capacity()));
+        jsonBytes.clear();
+        encodeUtf8(json, jsonBytes);
+        out.write(jsonBytes.array(), 0, jsonBytes.position());
+    }
+
+    // Groups the WMEs by attribute in one pass over them, then writes each group
+    private void writeJsonObject(Identifier id, Appendable out, int depth, int base) throws IOException {
+        int end = base;
+        lastOfAttribute.clear();
+        Iterator<Wme> it = id.getWmes();
+        while (it.hasNext()) {
+            Wme wme = it.next();
+            ensureCapacity(end + 1);
+            wmes[end] = wme;
+            nextOfAttribute[end] = -1;
+            Integer last = lastOfAttribute.put(wme.getAttribute(), end);
+            firstOfAttribute[end] = last == null;
+            if (last != null) nextOfAttribute[last] = end;
+            end++;
+        }
+
+        out.append('{');
+        boolean first = true;
+        for (int i = base; i < end; i++) {
+            if (!firstOfAttribute[i]) continue; // Written in the array of its attribute
+            if (!first) out.append(',');
+            first = false;
+            writeJsonString(name(wmes[i].getAttribute()), out);
+            out.append(':');
+            if (nextOfAttribute[i] < 0) {
+                writeJsonValue(wmes[i].getValue(), out, depth, end);
+                continue;
+            }
+            out.append('[');
+            for (int j = i; j >= 0; j = nextOfAttribute[j]) {
+                if (j != i) out.append(',');
+                writeJsonValue(wmes[j].getValue(), out, depth, end);
+            }
+            out.append(']');
+        }
+        out.append('}');
+        Arrays.fill(wmes, base, end, null);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= wmes.length) return;
+        int capacity = Math.max(size, 2 * wmes.length);
+        wmes = Arrays.copyOf(wmes, capacity);
+        firstOfAttribute = Arrays.copyOf(firstOfAttribute, capacity);
+        nextOfAttribute = Arrays.copyOf(nextOfAttribute, capacity);
+    }
+
+    private void writeJsonValue(Symbol value, Appendable out, int depth, int base) throws IOException {
+        Identifier id = value.asIdentifier();
+        if (id != null) {
+            if (depth + 1 < MAX_DEPTH && written.add(id)) writeJsonObject(id, out, depth + 1, base);
+            else writeJsonString(id.toString(), out);
+            return;
+        }
+        IntegerSymbol integer = value.asInteger();
+        if (integer != null) {
+            out.append(Long.toString(integer.getValue()));
+            return;
+        }
+        DoubleSymbol d = value.asDouble();
+        if (d != null && Double.isFinite(d.getValue())) {
+            out.append(Double.toString(d.getValue()));
+            return;
+        }
+        writeJsonString(name(value), out);
+    }
+
+    private static void writeJsonString(String s, Appendable out) throws IOException {
+        out.append('"');
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') continue;
+            out.append(s, start, i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    out.append("\\u00");
+                    out.append(Character.forDigit(c >> 4, 16));
+                    out.append(Character.forDigit(c & 0xF, 16));
+            }
+            start = i + 1;
+        }
+        out.append(s, start, s.length());
+        out.append('"');
+    }
+
+    int writeBinary(Identifier id, ByteBuffer out) {
+        int start = out.position();
+        written.clear();
+        written.add(id);
+        writeBinaryObject(id, out, 0);
+        return out.position() - start;
+    }
+
+    private void writeBinaryObject(Identifier id, ByteBuffer out, int depth) {
+        out.put(TAG_OBJECT);
+        int countPosition = out.position();
+        out.putInt(0);
+        int count = 0;
+        Iterator<Wme> it = id.getWmes();
+        while (it.hasNext()) {
+            Wme wme = it.next();
+            writeBinaryString(name(wme.getAttribute()), out);
+            writeBinaryValue(wme.getValue(), out, depth);
+            count++;
+        }
+        out.putInt(countPosition, count);
+    }
+
+    private void writeBinaryValue(Symbol value, ByteBuffer out, int depth) {
+        Identifier id = value.asIdentifier();
+        if (id != null) {
+            if (depth + 1 < MAX_DEPTH && written.add(id)) {
+                writeBinaryObject(id, out, depth + 1);
+            } else {
+                out.put(TAG_STRING);
+                writeBinaryString(id.toString(), out);
+            }
+            return;
+        }
+        IntegerSymbol integer = value.asInteger();
+        if (integer != null) {
+            out.put(TAG_INTEGER);
+            out.putLong(integer.getValue());
+            return;
+        }
+        DoubleSymbol d = value.asDouble();
+        if (d != null) {
+            out.put(TAG_DOUBLE);
+            out.putDouble(d.getValue());
+            return;
+        }
+        out.put(TAG_STRING);
+        writeBinaryString(name(value), out);
+    }
+
+    // Writes the length in bytes, then the UTF-8 bytes, encoding in place
+    private static void writeBinaryString(String s, ByteBuffer out) {
+        int lengthPosition = out.position();
+        out.putInt(0);
+        int start = out.position();
+        encodeUtf8(s, out);
+        out.putInt(lengthPosition, out.position() - start);
+    }
+
+    private static void encodeUtf8(CharSequence s, ByteBuffer out) {
+        for (int i = 0; i < s.length(); i++) {
+            int c = Character.codePointAt(s, i);
+            if (Character.isSupplementaryCodePoint(c)) i++;
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (c < 0x10000) {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                out.put((byte) (0xF0 | (c >> 18)));
+                out.put((byte) (0x80 | ((c >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static String name(Symbol symbol) {
+        StringSymbol string = symbol.asString();
+        return string != null ? string.getValue() : symbol.toString();
+    }
+}
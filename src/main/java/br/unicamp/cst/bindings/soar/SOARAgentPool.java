@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Hosts many independent SOARPlugin agents and steps them in parallel on a
+ * bounded work-stealing pool, sized by default to the number of cores.
+ *
+ * Agents are stepped in rounds. In each round every agent runs its cycle quota,
+ * so a slow agent never starves the others, and idle workers steal the agents
+ * still waiting to run. An agent is never stepped by two workers at once.
+ */
+public class SOARAgentPool {
+
+    private static final Logger logger = Logger.getLogger(SOARAgentPool.class.getName());
+
+    private final ForkJoinPool pool;
+    private final List<PooledAgent> agents = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong totalCycles = new AtomicLong();
+    private volatile long statisticsStart = System.nanoTime();
+
+    private volatile boolean running = false;
+    private Thread scheduler;
+
+    /**
+     * An agent hosted by the pool, with its cycle quota and counters
+     */
+    public static class PooledAgent {
+
+        private final SOARPlugin plugin;
+        private volatile int cycleQuota;
+        private volatile Consumer<SOARPlugin> beforeCycle;
+        private volatile Consumer<SOARPlugin> afterCycle;
+        private final AtomicLong cycles = new AtomicLong();
+
+        PooledAgent(SOARPlugin plugin, int cycleQuota) {
+            this.plugin = plugin;
+            setCycleQuota(cycleQuota);
+        }
+
+        // Only the cycles that completed without errors are counted
+        private int runQuota() {
+            int done = 0;
+            for (int i = 0; i < cycleQuota; i++) {
+                try {
+                    Consumer<SOARPlugin> before = beforeCycle;
+                    if (before != null) before.accept(plugin);
+                    plugin.step();
+                    Consumer<SOARPlugin> after = afterCycle;
+                    if (after != null) after.accept(plugin);
+                    done++;
+                } catch (RuntimeException e) {
+                    logger.severe("Error while running SOAR agent " + plugin.getAgentName() + " in the pool" + e);
+                }
+            }
+            cycles.addAndGet(done);
+            return done;
+        }
+
+        public SOARPlugin getPlugin() {
+            return plugin;
+        }
+
+        public int getCycleQuota() {
+            return cycleQuota;
+        }
+
+        /**
+         * Sets how many cycles the agent runs in each round
+         *
+         * @param cycleQuota cycles per round, at least 1
+         */
+        public void setCycleQuota(int cycleQuota) {
+            if (cycleQuota < 1) throw new IllegalArgumentException("cycleQuota must be at least 1");
+            this.cycleQuota = cycleQuota;
+        }
+
+        /**
+         * Sets a callback run before each cycle of the agent, e.g. to update its input link
+         *
+         * @param beforeCycle the callback, or null
+         */
+        public void setBeforeCycle(Consumer<SOARPlugin> beforeCycle) {
+            this.beforeCycle = beforeCycle;
+        }
+
+        /**
+         * Sets a callback run after each cycle of the agent, e.g. to read its output link
+         *
+         * @param afterCycle the callback, or null
+         */
+        public void setAfterCycle(Consumer<SOARPlugin> afterCycle) {
+            this.afterCycle = afterCycle;
+        }
+
+        public long getCycles() {
+            return cycles.get();
+        }
+    }
+
+    private static class RoundTask extends RecursiveTask<Long> {
+
+        private final PooledAgent[] agents;
+        private final int from;
+        private final int to;
+
+        RoundTask(PooledAgent[] agents, int from, int to) {
+            this.agents = agents;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from == 1) {
+                PooledAgent agent = agents[from];
+                synchronized (agent) {
+                    return (long) agent.runQuota();
+                }
+            }
+            int middle = (from + to) >>> 1;
+            RoundTask right = new RoundTask(agents, middle, to);
+            right.fork(); // Left for idle workers to steal
+            long left = new RoundTask(agents, from, middle).compute();
+            return left + right.join();
+        }
+    }
+
+    /**
+     * Creates a pool with one worker per available core
+     */
+    public SOARAgentPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a pool with a given number of workers
+     *
+     * @param parallelism number of worker threads
+     */
+    public SOARAgentPool(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Adds an agent that runs one cycle per round
+     *
+     * @param plugin the agent
+     * @return the pooled agent
+     */
+    public PooledAgent addAgent(SOARPlugin plugin) {
+        return addAgent(plugin, 1);
+    }
+
+    /**
+     * Adds an agent
+     *
+     * @param plugin the agent
+     * @param cycleQuota cycles the agent runs in each round
+     * @return the pooled agent
+     */
+    public PooledAgent addAgent(SOARPlugin plugin, int cycleQuota) {
+        PooledAgent agent = new PooledAgent(plugin, cycleQuota);
+        agents.add(agent);
+        return agent;
+    }
+
+    public boolean removeAgent(SOARPlugin plugin) {
+        return agents.removeIf(agent -> agent.getPlugin() == plugin);
+    }
+
+    public List<PooledAgent> getAgents() {
+        return agents;
+    }
+
+    /**
+     * Steps every agent for its cycle quota, in parallel, and waits for all of them
+     *
+     * @return the number of agent-cycles run
+     */
+    public long runRound() {
+        PooledAgent[] round = agents.toArray(new PooledAgent[0]);
+        if (round.length == 0) return 0;
+        long cycles = pool.invoke(new RoundTask(round, 0, round.length));
+        totalCycles.addAndGet(cycles);
+        return cycles;
+    }
+
+    /**
+     * Runs a number of rounds
+     *
+     * @param rounds number of rounds
+     * @return the number of agent-cycles run
+     */
+    public long runRounds(int rounds) {
+        long cycles = 0;
+        for (int i = 0; i < rounds; i++) cycles += runRound();
+        return cycles;
+    }
+
+    /**
+     * Keeps running rounds on a background thread until stop() is called
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        scheduler = new Thread(() -> {
+            while (running) {
+                try {
+                    if (runRound() == 0) Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    logger.severe("Error while running SOAR agent pool round" + e);
+                }
+            }
+        }, "SOARAgentPool");
+        scheduler.setDaemon(true);
+        scheduler.start();
+    }
+
+    /**
+     * Stops the background rounds, after the current round ends
+     */
+    public synchronized void stop() {
+        running = false;
+        if (scheduler != null) {
+            try {
+                scheduler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scheduler = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops the pool and its workers. Agents are not finalized.
+     */
+    public void shutdown() {
+        stop();
+        pool.shutdown();
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Gets the number of agent-cycles run since the statistics were reset
+     *
+     * @return the number of agent-cycles
+     */
+    public long getTotalCycles() {
+        return totalCycles.get();
+    }
+
+    /**
+     * Gets the throughput since the statistics were reset
+     *
+     * @return agent-cycles per second
+     */
+    public double getThroughput() {
+        long elapsed = System.nanoTime() - statisticsStart;
+        if (elapsed <= 0) return 0;
+        return totalCycles.get() * 1e9 / elapsed;
+    }
+
+    public void resetStatistics() {
+        totalCycles.set(0);
+        statisticsStart = System.nanoTime();
+    }
+}
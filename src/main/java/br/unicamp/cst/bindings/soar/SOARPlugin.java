@@ -12,6 +12,9 @@
 package br.unicamp.cst.bindings.soar;
 
 import br.unicamp.cst.representation.idea.Idea;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.google.common.primitives.Doubles;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -19,18 +22,38 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.Decider;
+import org.jsoar.kernel.Goal;
 import org.jsoar.kernel.Phase;
+import org.jsoar.kernel.Production;
+import org.jsoar.kernel.ProductionManager;
+import org.jsoar.kernel.ProductionType;
 import org.jsoar.kernel.RunType;
+import org.jsoar.kernel.SoarException;
+import org.jsoar.kernel.SoarProperties;
+import org.jsoar.kernel.io.InputWme;
 import org.jsoar.kernel.memory.Wme;
+import org.jsoar.kernel.memory.WmeImpl;
 import org.jsoar.kernel.memory.Wmes;
+import org.jsoar.kernel.rhs.functions.RhsFunctionHandler;
 import org.jsoar.kernel.symbols.*;
 import org.jsoar.runtime.ThreadedAgent;
+import org.jsoar.util.Printer;
+import org.jsoar.util.adaptables.Adaptables;
 import org.jsoar.util.commands.SoarCommands;
 
 import java.io.File;
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 /**
@@ -41,7 +64,7 @@ public class SOARPlugin {
 
     Logger logger = Logger.getLogger(SOARPlugin.class.getName());
 
-    private ThreadedAgent threaded;
+    private volatile ThreadedAgent threaded;
 
     private Agent agent;
 
@@ -49,6 +72,16 @@ public class SOARPlugin {
 
     private Idea inputLinkIdea;
 
+    // JSON input link, streamed straight into WMEs when set
+    private String inputLinkJson;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    // One-shot operator that recreates the WMEs of a checkpoint
+    private static final String RESTORE_OPERATOR = "cst-restore-checkpoint";
+    private static final String RESTORE_PROPOSE = "cst*restore*checkpoint*propose";
+    private static final String RESTORE_APPLY = "cst*restore*checkpoint*apply";
+
     private Idea outputLinkIdea;
 
     // Ordinary Variables
@@ -56,11 +89,97 @@ public class SOARPlugin {
     private File productionPath;
     private String inputLinkAsString = "";
     private String outputLinkAsString = "";
-    private int phase = -1;
-    private int debugState = 0;
+    private boolean inputLinkStringStale = false;
+    private boolean outputLinkStringStale = false;
+    private boolean eagerLinkRendering = false;
+    private final StringBuilder linkStringBuffer = new StringBuilder();
+    private final OutputLinkWriter outputLinkWriter = new OutputLinkWriter();
+    private volatile int phase = -1;
+    private volatile int debugState = 0;
+    private boolean incrementalInputLink = false;
+    private boolean persistentState = false;
 
     private List<Identifier> operatorsPathList = new ArrayList<>();
 
+    // Operator tracing that can stay on: preallocated, drained by readers without locking
+    private volatile OperatorTrace operatorTrace;
+    private volatile InputLinkRecorder inputLinkRecorder;
+    private long cycleCount = 0;
+    private Decider decider;
+    private Agent deciderAgent;
+
+    // Handlers of output commands, by command name, and the commands seen on the output link
+    private final Map<String, List<CommandSubscription>> commandHandlers = new ConcurrentHashMap<>();
+    private Set<Identifier> outputCommands = new HashSet<>();
+    private Set<Identifier> spareOutputCommands = new HashSet<>();
+
+    // Status WMEs added to consumed output commands, removed once the rules remove the commands
+    private static final String STATUS_ATTRIBUTE = "status";
+    private static final String STATUS_COMPLETE = "complete";
+    private volatile boolean autoAcknowledgeCommands = false;
+    private final Map<Identifier, InputWme> acknowledgedCommands = new HashMap<>();
+    private int acknowledgedGeneration = -1;
+
+    private static class CommandSubscription {
+        final Class<?> type;
+        final String beanPackage;
+        final SoarCommandHandler<Object> handler;
+
+        CommandSubscription(Class<?> type, String beanPackage, SoarCommandHandler<Object> handler) {
+            this.type = type;
+            this.beanPackage = beanPackage;
+            this.handler = handler;
+        }
+    }
+
+    // Names of the productions loaded from each rule file, by canonical file
+    // path, to diff reloads against, and the errors of the last reload
+    private final Map<String, Set<String>> loadedProductions = new HashMap<>();
+    private List<String> reloadFailures = Collections.emptyList();
+
+    // Mirror of the input-link WMEs, used when incrementalInputLink is set or
+    // the input is JSON, and the path index of the input link otherwise, built
+    // on the first path lookup after each cycle
+    private InputLinkNode inputLinkMirror;
+    private InputLinkNode inputLinkIndex;
+
+    // Input-link size gauge and optional cap
+    private int inputLinkWmeCount = 0;
+    private int inputLinkWmeLimit = 0;
+    private InputLinkLimitPolicy inputLinkLimitPolicy = InputLinkLimitPolicy.WARN;
+    private boolean inputLinkLimitWarned = false;
+    private int inputLinkRejections = 0;
+    private long rejectedInputWmes = 0;
+
+    // Attribute-name symbols of the input link, kept across cycles
+    private static final int MAX_ATTRIBUTE_SYMBOLS = 4096;
+    private static final int MAX_SEARCH_DEPTH = 64; // Working memory may hold cycles
+    private final Map<String, StringSymbol> attributeSymbols = new HashMap<>();
+
+    // Output-link change tracking: WME timetags only grow between initializations,
+    // so the WME count and the highest timetag tell whether the output link changed
+    private int agentGeneration = 0;
+    private int outputLinkGeneration = -1;
+    private long outputLinkWmeCount = -1;
+    private long outputLinkMaxTimetag = -1;
+    private long scannedMaxTimetag;
+    private boolean outputLinkChanged = false;
+
+    // Asynchronous execution: the latest published input and the latest completed output
+    private volatile boolean asyncMode = false;
+    private final AtomicReference<Idea> pendingInputIdea = new AtomicReference<>();
+    private final AtomicReference<SOARSnapshot> latestOutput = new AtomicReference<>();
+    private final AtomicBoolean asyncCycleScheduled = new AtomicBoolean(false);
+
+    // State published after every cycle for readers on other threads
+    private volatile SOARSnapshot cycleSnapshot;
+    private volatile boolean linkStringsInSnapshots = true;
+    private boolean batchingPhases = false;
+
+    // Latency of each part of the cycle, recorded without locking
+    private final Map<CycleStage, LatencyHistogram> latencies = createLatencyHistograms();
+    private volatile boolean timingEnabled = true;
+
     public SOARPlugin() {
     }
 
@@ -76,8 +195,7 @@ public class SOARPlugin {
             setAgent(agent);
 
             // Load some productions
-            String path = getProductionPath().getAbsolutePath();
-            SoarCommands.source(getAgent().getInterpreter(), path);
+            sourceRules(getProductionPath().getAbsolutePath());
             setInputLinkIdentifier(getAgent().getInputOutput().getInputLink());
 
             // Start the Debugger if it is the case
@@ -97,49 +215,352 @@ public class SOARPlugin {
      * Perform a complete SOAR step
      * 
      */
-    public void step() 
+    public synchronized void step() 
     {
-        if (phase != -1) finish_msteps();
-        dofullcycle();
+        batchingPhases = true;
+        try {
+            if (phase != -1) finish_msteps();
+            dofullcycle();
+        } finally {
+            batchingPhases = false;
+        }
         processOutputLink();
+        publishCycleSnapshot();
     }
     
-    public void prepare_mstep() {
-        resetSimulation();
+    /**
+     * Runs several decision cycles back to back. The input link is committed
+     * once, the cycles run without any per-phase bookkeeping, and the output
+     * link is materialized once at the end. The run stops early if the agent
+     * is interrupted or halted.
+     *
+     * @param cycles number of decision cycles to run
+     * @return the number of decision cycles actually run
+     */
+    public synchronized int step(int cycles) {
+        if (phase != -1) finish_msteps();
+        prepare_mstep();
+        long before = getDecisionCycleCount();
+        getAgent().runFor(cycles, RunType.DECISIONS);
+        int done = (int) (getDecisionCycleCount() - before);
+        countCycles(done);
+        if (isEagerLinkRendering()) {
+            getWMEStringInput();
+            getWMEStringOutput();
+        } else {
+            inputLinkStringStale = true;
+            outputLinkStringStale = true;
+        }
+        processOutputLink();
+        post_mstep();
+        phase = -1;
+        oldphase = -1;
+        publishCycleSnapshot();
+        return done;
+    }
+
+    /**
+     * Runs phases of the current cycle until it completes or the time budget
+     * is spent. The budget is only checked between phases and at least one
+     * phase always runs, so a call can exceed it by one phase, plus the input
+     * conversion when the call starts a cycle and the output link processing
+     * when it completes one. An unfinished cycle resumes where it stopped on
+     * the next call.
+     *
+     * @param budget the time allowed for this call
+     * @return true if the cycle completed and the output link was processed
+     */
+    public synchronized boolean step(Duration budget) {
+        long deadline = System.nanoTime() + budget.toNanos();
+        batchingPhases = true;
+        try {
+            do {
+                mstep();
+            } while (phase != -1 && System.nanoTime() - deadline < 0);
+        } finally {
+            batchingPhases = false;
+        }
+        boolean completed = phase == -1;
+        if (completed) processOutputLink();
+        publishCycleSnapshot();
+        return completed;
+    }
+
+    private void countCycles(int cycles) {
+        cycleCount += cycles;
+        InputLinkRecorder recorder = inputLinkRecorder;
+        if (recorder != null) recorder.recordCycles(cycles);
+    }
+
+    private long getDecisionCycleCount() {
+        return getAgent().getProperties().get(SoarProperties.D_CYCLE_COUNT);
+    }
+
+    public synchronized void prepare_mstep() {
+        if (!isPersistentState()) resetSimulation();
         processInputLink(); // Transform AO into WMEs
     }
 
     int oldphase = -1;
-    public void mstep()
+    public synchronized void mstep()
     {
         if (phase == -1) prepare_mstep();
-        getWMEStringInput(); // Copy InputLink into the a String readable version
+        if (isEagerLinkRendering()) getWMEStringInput(); // Copy InputLink into the a String readable version
+        else inputLinkStringStale = true;
+        CycleStage stage = CycleStage.of(getAgent().getCurrentPhase());
+        long start = System.nanoTime();
         phase = stepSOAR(1,RunType.PHASES);
-        getWMEStringOutput(); // Copy OutputLink into the a String readable version
-        if (getPhase() == 3 && getDebugState() == 1) {
-            getOperatorsPathList().addAll(getOperatorsInCurrentPhase(getStates()));
+        if (stage != null) recordLatency(stage, start);
+        if (isEagerLinkRendering()) getWMEStringOutput(); // Copy OutputLink into the a String readable version
+        else outputLinkStringStale = true;
+        if (getPhase() == 3) {
+            if (getDebugState() == 1) getOperatorsPathList().addAll(getOperatorsInCurrentPhase(getStates()));
+            OperatorTrace trace = operatorTrace;
+            if (trace != null) traceOperators(trace);
         }
-        if (phase == 5 || phase == oldphase) { // oldphase included to avoid infinite recursion
+        if (isCycleFinished()) {
+            countCycles(1);
             post_mstep();
             phase = -1;
         }
         oldphase = phase;
+        if (!batchingPhases) publishCycleSnapshot();
     }
     
-    public void finish_msteps() {
+    private static Map<CycleStage, LatencyHistogram> createLatencyHistograms() {
+        Map<CycleStage, LatencyHistogram> histograms = new EnumMap<>(CycleStage.class);
+        for (CycleStage stage : CycleStage.values()) histograms.put(stage, new LatencyHistogram());
+        return histograms;
+    }
+
+    private void recordLatency(CycleStage stage, long start) {
+        if (timingEnabled) latencies.get(stage).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Gets the latency histograms of each part of the cycle: input conversion,
+     * each Soar phase run by mstep() and output materialization. Cycles run with
+     * step(int) only record input conversion and output materialization.
+     *
+     * @return an immutable snapshot of every histogram, in nanoseconds
+     */
+    public Map<CycleStage, LatencyHistogram.Snapshot> getLatencySnapshot() {
+        Map<CycleStage, LatencyHistogram.Snapshot> snapshot = new EnumMap<>(CycleStage.class);
+        for (Map.Entry<CycleStage, LatencyHistogram> entry : latencies.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    public void resetLatencies() {
+        for (LatencyHistogram histogram : latencies.values()) histogram.reset();
+    }
+
+    public boolean isTimingEnabled() {
+        return timingEnabled;
+    }
+
+    /**
+     * Sets whether cycle latencies are recorded. They are by default.
+     *
+     * @param timingEnabled true to record latencies
+     */
+    public void setTimingEnabled(boolean timingEnabled) {
+        this.timingEnabled = timingEnabled;
+    }
+
+    /**
+     * Publishes the state of the plugin for readers on other threads. The link
+     * strings are rendered unless setLinkStringsInSnapshots() turned them off.
+     */
+    private void publishCycleSnapshot() {
+        String input = null;
+        String output = null;
+        if (linkStringsInSnapshots) {
+            input = getInputLinkAsString();
+            output = getOutputLinkAsString();
+        }
+        cycleSnapshot = new SOARSnapshot(cycleCount, getOutputLinkIdea(), phase, debugState,
+                outputLinkChanged, input, output);
+    }
+
+    /**
+     * Gets the state of the plugin after the last cycle, or after the last
+     * phase when stepped with mstep(). Never blocks.
+     *
+     * @return the snapshot, or null before the first cycle
+     */
+    public SOARSnapshot getCycleSnapshot() {
+        return cycleSnapshot;
+    }
+
+    public boolean isLinkStringsInSnapshots() {
+        return linkStringsInSnapshots;
+    }
+
+    /**
+     * Sets whether the input and output link strings are rendered into every
+     * published snapshot. They are by default; callers that do not read them
+     * can turn them off to save rendering both links after every cycle.
+     *
+     * @param linkStringsInSnapshots true to render the link strings
+     */
+    public void setLinkStringsInSnapshots(boolean linkStringsInSnapshots) {
+        this.linkStringsInSnapshots = linkStringsInSnapshots;
+    }
+
+    private boolean isCycleFinished() {
+        if (phase == oldphase) return true; // oldphase included to avoid infinite recursion
+        if (isPersistentState()) return phase == 0; // Back to the input phase: the output phase has run
+        return phase == 5;
+    }
+
+    public synchronized void finish_msteps() {
         while (phase != -1) mstep();
     }
     
-    public void dofullcycle() {
+    public synchronized void dofullcycle() {
         do mstep(); while (phase != -1); 
     }
     
     public void post_mstep()  {
-        setOperatorsPathList(new ArrayList<>());
+        if (!getOperatorsPathList().isEmpty()) setOperatorsPathList(new ArrayList<>());
+    }
+
+    /**
+     * Records the operator selected in each state of the goal stack, walking
+     * the goal stack and operator slots directly so nothing is allocated
+     */
+    private void traceOperators(OperatorTrace trace) {
+        if (decider == null || deciderAgent != getAgent()) {
+            decider = Adaptables.adapt(getAgent(), Decider.class);
+            deciderAgent = getAgent();
+        }
+        for (IdentifierImpl goal = decider.top_goal; goal != null; goal = goal.goalInfo.lower_goal) {
+            WmeImpl selected = goal.goalInfo.operator_slot.getWmes();
+            if (selected == null) continue;
+            Identifier operator = selected.getValue().asIdentifier();
+            if (operator != null) trace.record(cycleCount + 1, goal, operator);
+        }
+    }
+
+    public OperatorTrace getOperatorTrace() {
+        return operatorTrace;
+    }
+
+    /**
+     * Sets where the operators selected in every cycle run with mstep() or
+     * step() are traced. Unlike debugState 1, tracing allocates nothing.
+     *
+     * @param operatorTrace the trace, or null to stop tracing
+     */
+    public void setOperatorTrace(OperatorTrace operatorTrace) {
+        this.operatorTrace = operatorTrace;
+    }
+
+    public InputLinkRecorder getInputLinkRecorder() {
+        return inputLinkRecorder;
+    }
+
+    /**
+     * Sets a recorder that logs the input of every input-link commit with the
+     * number of decision cycles run on it, so it can be replayed later with
+     * InputLinkReplayer. The recorder is not closed by the plugin.
+     *
+     * @param inputLinkRecorder the recorder, or null to stop recording
+     */
+    public void setInputLinkRecorder(InputLinkRecorder inputLinkRecorder) {
+        this.inputLinkRecorder = inputLinkRecorder;
+    }
+
+    /**
+     * Gets the number of decision cycles completed by this plugin
+     *
+     * @return the number of cycles
+     */
+    public synchronized long getCycleCount() {
+        return cycleCount;
     }
     
     /*************************************************/
 
+    /**
+     * Starts running the agent on its own thread. From then on, input is given
+     * with publishInput() and results are taken with getLatestOutput(), so a
+     * slow Soar cycle never stalls the caller.
+     */
+    public synchronized void startAsync() {
+        if (asyncMode) return;
+        if (getThreaded() == null) setThreaded(ThreadedAgent.attach(getAgent()));
+        asyncMode = true;
+        if (pendingInputIdea.get() != null) scheduleAsyncCycle();
+    }
+
+    /**
+     * Stops running the agent on its own thread. A cycle already started is
+     * not interrupted, and cycles that did not start yet are skipped. The agent
+     * thread is detached without holding the plugin lock, since it may be
+     * waiting for it.
+     */
+    public void stopAsync() {
+        ThreadedAgent agentThread;
+        synchronized (this) {
+            asyncMode = false;
+            agentThread = getThreaded();
+            setThreaded(null);
+        }
+        if (agentThread != null) agentThread.detach();
+    }
+
+    public boolean isAsync() {
+        return asyncMode;
+    }
+
+    /**
+     * Publishes a new input link for the agent thread. Only the latest input is
+     * kept: inputs published while a cycle runs are merged into the next cycle.
+     * The Idea must not be modified after it is published.
+     *
+     * @param inputLinkIdea the input link
+     */
+    public void publishInput(Idea inputLinkIdea) {
+        pendingInputIdea.set(inputLinkIdea);
+        scheduleAsyncCycle();
+    }
+
+    /**
+     * Gets the output of the latest cycle completed on the agent thread
+     *
+     * @return the latest output, or null if no cycle has completed yet
+     */
+    public SOARSnapshot getLatestOutput() {
+        return latestOutput.get();
+    }
+
+    private void scheduleAsyncCycle() {
+        if (!asyncMode) return;
+        ThreadedAgent agentThread = getThreaded();
+        if (agentThread != null && asyncCycleScheduled.compareAndSet(false, true)) {
+            agentThread.execute(this::runAsyncCycle, result -> {});
+        }
+    }
+
+    private Void runAsyncCycle() {
+        asyncCycleScheduled.set(false); // Input published from now on needs another cycle
+        synchronized (this) {
+            if (!asyncMode) return null; // Stopped while this cycle was queued
+            try {
+                Idea input = pendingInputIdea.getAndSet(null);
+                if (input != null) setInputLinkIdea(input);
+                step();
+                latestOutput.set(cycleSnapshot);
+            } catch (Exception e) {
+                logger.severe("Error while running asynchronous SOAR step" + e);
+            }
+        }
+        return null;
+    }
+
     public void moveToFinalStep() {
         while (getPhase() != -1) {
             step();
@@ -148,6 +569,7 @@ public class SOARPlugin {
 
     public void finalizeKernel() {
         try {
+            stopAsync();
             getAgent().dispose();
         } catch (Exception e) {
             logger.severe("Error while shuting down SOAR" + e);
@@ -156,6 +578,10 @@ public class SOARPlugin {
 
     public void resetSOAR() {
         getAgent().initialize();
+        inputLinkMirror = null;
+        inputLinkIndex = null;
+        inputLinkWmeCount = 0;
+        agentGeneration++;
         setInputLinkIdentifier(getAgent().getInputOutput().getInputLink());
     }
 
@@ -177,6 +603,10 @@ public class SOARPlugin {
 
     public void resetSimulation() {
         getAgent().initialize();
+        inputLinkMirror = null;
+        inputLinkIndex = null;
+        inputLinkWmeCount = 0;
+        agentGeneration++;
     }
 
     protected int stepSOAR(int i, RunType type) {
@@ -205,21 +635,21 @@ public class SOARPlugin {
     }
 
     public String getWMEsAsString(List<Wme> Commands) {
-        String result = "";
-        String preference = "";
+        StringBuilder result = new StringBuilder();
         for (Wme wme : Commands) {
-            preference = "";
-            if (wme.isAcceptable()) preference = " +";
-            result += "(" + wme.getIdentifier().toString() + "," + wme.getAttribute().toString() + "," + wme.getValue().toString() + preference + ")\n   ";
+            appendWME(result, wme);
             Iterator<Wme> children = wme.getChildren();
             while (children.hasNext()) {
-                Wme child = children.next();
-                preference = "";
-                if (child.isAcceptable()) preference = " +";
-                result += "(" + child.getIdentifier().toString() + "," + child.getAttribute().toString() + "," + child.getValue().toString() + preference + ")\n   ";
+                appendWME(result, children.next());
             }
         }
-        return (result);
+        return (result.toString());
+    }
+
+    private void appendWME(StringBuilder out, Wme wme) {
+        out.append('(').append(wme.getIdentifier()).append(',').append(wme.getAttribute()).append(',').append(wme.getValue());
+        if (wme.isAcceptable()) out.append(" +");
+        out.append(")\n   ");
     }
 
     public List<Identifier> getOperatorsInCurrentPhase(List<Identifier> identifiers) {
@@ -230,7 +660,7 @@ public class SOARPlugin {
             Iterator<Wme> it = id.getWmes();
             while (it.hasNext()) {
                 Wme wme = it.next();
-                if (wme.getAttribute().asString().getValue().toLowerCase().equals("operator") && !wme.isAcceptable()) {
+                if (wme.getAttribute().toString().equalsIgnoreCase("operator") && !wme.isAcceptable()) {
                     Symbol v = wme.getValue();
                     operators.add(v.asIdentifier());
                 }
@@ -269,20 +699,20 @@ public class SOARPlugin {
     public Identifier createIdWME(Identifier id, String s) {
         SymbolFactoryImpl sf = (SymbolFactoryImpl) getAgent().getSymbols();
         Identifier newID = sf.createIdentifier('W');
-        getAgent().getInputOutput().addInputWme(id, sf.createString(s), newID);
+        getAgent().getInputOutput().addInputWme(id, getAttributeSymbol(s), newID);
         return (newID);
     }
 
     public void createFloatWME(Identifier id, String s, double value) {
         SymbolFactory sf = getAgent().getSymbols();
         DoubleSymbol newID = sf.createDouble(value);
-        getAgent().getInputOutput().addInputWme(id, sf.createString(s), newID);
+        getAgent().getInputOutput().addInputWme(id, getAttributeSymbol(s), newID);
     }
 
     public void createStringWME(Identifier id, String s, String value) {
         SymbolFactory sf = getAgent().getSymbols();
         StringSymbol newID = sf.createString(value);
-        getAgent().getInputOutput().addInputWme(id, sf.createString(s), newID);
+        getAgent().getInputOutput().addInputWme(id, getAttributeSymbol(s), newID);
     }
 
     public Identifier getOutputLinkIdentifier() {
@@ -297,27 +727,18 @@ public class SOARPlugin {
         return Wmes.matcher(getAgent()).filter(getAgent().getInputOutput().getInputLink()).get(0);
     }
 
+    /**
+     * Gets the identifiers of the states in the goal stack, from the top state
+     * down. They are read from the agent's goal stack, in O(depth).
+     *
+     * @return the state identifiers
+     */
     public synchronized List<Identifier> getStates() {
-        List<Identifier> li = new ArrayList<Identifier>();
-
-        synchronized (getAgent().getAllWmesInRete()) {
-
-            Set<Wme> allmem = Collections.synchronizedSet(getAgent().getAllWmesInRete());
-
-            for (Wme w : allmem) {
-                
-                Identifier id = w.getIdentifier();
-                if (id.isGoal()) {
-                    boolean alreadythere = false;
-                    for (Identifier icand : li)
-                        if (icand == id) alreadythere = true;
-                    if (alreadythere == false) {
-                        li.add(id);
-                    }
-                }
-            }
+        List<Goal> goals = getAgent().getGoalStack();
+        List<Identifier> li = new ArrayList<Identifier>(goals.size());
+        for (Goal goal : goals) {
+            li.add(goal.getIdentifier());
         }
-
         return (li);
     }
     
@@ -395,19 +816,17 @@ public class SOARPlugin {
     }
 
     public boolean hasWMEChild(Wme rootWME, String name){
-        boolean found = false;
-
         Iterator<Wme> children = rootWME.getChildren();
         while(children.hasNext()){
             Wme child = children.next();
             if(child.getAttribute().toString().equals(name)){
                 return true;
             }
-            else if(child.getChildren().hasNext()){
-                found = hasWMEChild(child, name);
+            else if(child.getChildren().hasNext() && hasWMEChild(child, name)){
+                return true;
             }
         }
-        return found;
+        return false;
     }
 
 
@@ -448,38 +867,45 @@ public class SOARPlugin {
     }
 
     public String getWMEString(Identifier id, int level) {
-        String out = "";
+        StringBuilder out = new StringBuilder();
+        appendWMEString(out, id, level);
+        return (out.toString());
+    }
+
+    /**
+     * Writes the WMEs under an identifier, recursively, into a buffer
+     *
+     * @param out the buffer
+     * @param id the identifier
+     * @param level indentation level of the identifier WMEs
+     */
+    public void appendWMEString(StringBuilder out, Identifier id, int level) {
         Iterator<Wme> It = id.getWmes();
         while (It.hasNext()) {
             Wme wme = It.next();
-            Identifier idd = wme.getIdentifier();
-            Symbol a = wme.getAttribute();
             Symbol v = wme.getValue();
             Identifier testv = v.asIdentifier();
             for (int i = 0; i < level; i++)
-                out += "   ";
-
-            if (testv != null) {
-                out += "(" + idd.toString() + "," + a.toString() + "," + v.toString() + ")\n";
-                out += getWMEString(testv, level + 1);
-            } else
-                out += "(" + idd.toString() + "," + a.toString() + "," + v.toString() + ")\n";
+                out.append("   ");
+            out.append('(').append(wme.getIdentifier()).append(',').append(wme.getAttribute()).append(',').append(v).append(")\n");
+            if (testv != null) appendWMEString(out, testv, level + 1);
         }
-        return (out);
     }
 
-    public String getWMEStringInput() {
-        String out = "";
+    public synchronized String getWMEStringInput() {
         Identifier il = getAgent().getInputOutput().getInputLink();
-        out += getWMEString(il);
+        linkStringBuffer.setLength(0);
+        appendWMEString(linkStringBuffer, il, 0);
+        String out = linkStringBuffer.toString();
         setInputLinkAsString(out);
         return (out);
     }
 
-    public String getWMEStringOutput() {
-        String out = "";
+    public synchronized String getWMEStringOutput() {
         Identifier ol = getAgent().getInputOutput().getOutputLink();
-        out += getWMEString(ol);
+        linkStringBuffer.setLength(0);
+        appendWMEString(linkStringBuffer, ol, 0);
+        String out = linkStringBuffer.toString();
         setOutputLinkAsString(out);
         return (out);
     }
@@ -530,39 +956,608 @@ public class SOARPlugin {
         return (newwo);
     }
 
+    /**
+     * Materializes the output link as an Idea. The Idea is only rebuilt when
+     * WMEs were added to or removed from the output link since the last call;
+     * isOutputLinkChanged() tells which was the case.
+     */
     public void processOutputLink() {
+        long start = System.nanoTime();
+        materializeOutputLink();
+        recordLatency(CycleStage.OUTPUT_MATERIALIZATION, start);
+        if (outputLinkChanged) dispatchCommands();
+    }
+
+    /**
+     * Calls the command handlers for the commands that were not on the output
+     * link the last time it changed. Only the commands with handlers are decoded.
+     * New commands are then acknowledged if autoAcknowledgeCommands is set, and
+     * the status WMEs of the commands no longer on the output link are removed.
+     */
+    private void dispatchCommands() {
+        Set<Identifier> previous = outputCommands;
+        Set<Identifier> current = spareOutputCommands;
+        current.clear();
+        boolean acknowledge = autoAcknowledgeCommands;
+        Iterator<Wme> it = getOutputLinkIdentifier().getWmes();
+        while (it.hasNext()) {
+            Wme wme = it.next();
+            Identifier command = wme.getValue().asIdentifier();
+            if (command == null || !current.add(command) || previous.contains(command)) continue;
+            String name = wme.getAttribute().toString();
+            List<CommandSubscription> subscriptions = commandHandlers.isEmpty() ? null : commandHandlers.get(name);
+            if (subscriptions != null) {
+                Idea idea = getWorldObject(command, name);
+                for (CommandSubscription subscription : subscriptions) {
+                    try {
+                        Object bean = subscription.type != null
+                                ? SoarBeanMapper.forClass(subscription.type).build(idea, subscription.beanPackage)
+                                : SoarBeanMapper.buildObject(idea, subscription.beanPackage);
+                        subscription.handler.handle(command, bean);
+                    } catch (RuntimeException e) {
+                        logger.severe("Error while handling Soar command " + name + e);
+                    }
+                }
+            }
+            if (acknowledge) acknowledgeCommand(command);
+        }
+        outputCommands = current;
+        spareOutputCommands = previous;
+        if (!getAcknowledgedCommands().isEmpty()) {
+            for (Iterator<Entry<Identifier, InputWme>> acknowledged = acknowledgedCommands.entrySet().iterator(); acknowledged.hasNext(); ) {
+                Entry<Identifier, InputWme> entry = acknowledged.next();
+                if (!current.contains(entry.getKey())) {
+                    entry.getValue().remove();
+                    acknowledged.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks an output command as consumed by adding ^status complete to it,
+     * the convention rules follow to remove the commands they issued. The
+     * status WME is removed along with the command.
+     *
+     * @param command the identifier of the command on the output link
+     * @return false if the command was already acknowledged
+     */
+    public synchronized boolean acknowledgeCommand(Identifier command) {
+        if (getAcknowledgedCommands().containsKey(command)) return false;
+        SymbolFactory symbols = getAgent().getSymbols();
+        InputWme status = getAgent().getInputOutput().addInputWme(command,
+                symbols.createString(STATUS_ATTRIBUTE), symbols.createString(STATUS_COMPLETE));
+        acknowledgedCommands.put(command, status);
+        outputLinkStringStale = true;
+        return true;
+    }
+
+    /**
+     * Gets the number of output commands acknowledged and still on the output link
+     *
+     * @return the number of commands
+     */
+    public synchronized int getAcknowledgedCommandCount() {
+        return getAcknowledgedCommands().size();
+    }
+
+    private Map<Identifier, InputWme> getAcknowledgedCommands() {
+        if (acknowledgedGeneration != agentGeneration) {
+            acknowledgedCommands.clear(); // Their WMEs went away with the agent initialization
+            acknowledgedGeneration = agentGeneration;
+        }
+        return acknowledgedCommands;
+    }
+
+    public boolean isAutoAcknowledgeCommands() {
+        return autoAcknowledgeCommands;
+    }
+
+    /**
+     * When set, every new command on the output link gets ^status complete once
+     * processOutputLink() has seen it and its handlers have run, so rules that
+     * remove completed commands keep the output link small in long runs.
+     *
+     * @param autoAcknowledgeCommands true to acknowledge commands automatically
+     */
+    public void setAutoAcknowledgeCommands(boolean autoAcknowledgeCommands) {
+        this.autoAcknowledgeCommands = autoAcknowledgeCommands;
+    }
+
+    /**
+     * Registers a handler for the commands named after the simple name of a
+     * bean class. It is called once for each new command identifier that
+     * appears on the output link, from processOutputLink(), with the command
+     * decoded into the bean class. Commands issued again after the agent is
+     * initialized are new identifiers, and are handled again.
+     *
+     * @param type the bean class, whose simple name is the command name
+     * @param handler the handler
+     * @param <T> the bean class
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void addCommandHandler(Class<T> type, SoarCommandHandler<? super T> handler) {
+        String beanPackage = type.getPackage() != null ? type.getPackage().getName() : "";
+        subscribe(type.getSimpleName(), new CommandSubscription(type, beanPackage, (SoarCommandHandler<Object>) handler));
+    }
+
+    /**
+     * Registers a handler for the commands with a given name, decoded as by
+     * JSoarCodelet.getOutputInObject()
+     *
+     * @param commandName the attribute of the command on the output link
+     * @param package_with_beans_classes package of the bean classes
+     * @param handler the handler
+     */
+    public void addCommandHandler(String commandName, String package_with_beans_classes, SoarCommandHandler<Object> handler) {
+        subscribe(commandName, new CommandSubscription(null, package_with_beans_classes, handler));
+    }
+
+    private void subscribe(String commandName, CommandSubscription subscription) {
+        commandHandlers.computeIfAbsent(commandName, name -> new CopyOnWriteArrayList<>()).add(subscription);
+    }
+
+    /**
+     * Unregisters a handler from every command it was registered for
+     *
+     * @param handler the handler
+     * @return true if it was registered
+     */
+    public boolean removeCommandHandler(SoarCommandHandler<?> handler) {
+        boolean removed = false;
+        for (List<CommandSubscription> subscriptions : commandHandlers.values()) {
+            removed |= subscriptions.removeIf(subscription -> subscription.handler == handler);
+        }
+        return removed;
+    }
+
+    private void materializeOutputLink() {
         Identifier ol = getAgent().getInputOutput().getOutputLink();
         if (ol == null) logger.severe("Error in cst.SOARPlugin: Unable to get access to OutputLink");
 
+        scannedMaxTimetag = -1;
+        long count = scanOutputLink(ol);
+        if (getOutputLinkIdea() != null && outputLinkGeneration == agentGeneration
+                && count == outputLinkWmeCount && scannedMaxTimetag == outputLinkMaxTimetag) {
+            outputLinkChanged = false;
+            return;
+        }
+
         Idea olao = getWorldObject(ol, agentName + ".OutputLink");
         setOutputLinkIdea(olao);
+        outputLinkGeneration = agentGeneration;
+        outputLinkWmeCount = count;
+        outputLinkMaxTimetag = scannedMaxTimetag;
+        outputLinkChanged = true;
+    }
+
+    /**
+     * Writes the output link as JSON, walking its WMEs directly with no
+     * intermediate Idea. Attributes repeated under an identifier become arrays,
+     * and identifiers referenced more than once are written in full only the
+     * first time, then as their name.
+     *
+     * @param out where the JSON is written to
+     * @throws IOException if out fails
+     */
+    public synchronized void writeOutputLinkJson(Appendable out) throws IOException {
+        outputLinkWriter.writeJson(getOutputLinkIdentifier(), out);
+    }
+
+    /**
+     * Writes the output link as UTF-8 JSON, in a single write to the stream.
+     * The stream is neither flushed nor closed.
+     *
+     * @param out where the JSON is written to
+     * @throws IOException if out fails
+     */
+    public synchronized void writeOutputLinkJson(OutputStream out) throws IOException {
+        outputLinkWriter.writeJson(getOutputLinkIdentifier(), out);
+    }
+
+    /**
+     * Writes the output link in a compact tagged binary form, described in
+     * OutputLinkWriter, starting at the buffer position
+     *
+     * @param out where the bytes are written to
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public synchronized int writeOutputLink(ByteBuffer out) {
+        return outputLinkWriter.writeBinary(getOutputLinkIdentifier(), out);
+    }
+
+    private long scanOutputLink(Identifier id) {
+        long count = 0;
+        Iterator<Wme> It = id.getWmes();
+        while (It.hasNext()) {
+            Wme wme = It.next();
+            count++;
+            long timetag = wme.getTimetag();
+            if (timetag > scannedMaxTimetag) scannedMaxTimetag = timetag;
+            Identifier testv = wme.getValue().asIdentifier();
+            if (testv != null) count += scanOutputLink(testv);
+        }
+        return count;
+    }
+
+    /**
+     * Tells whether the last call to processOutputLink() found a different
+     * output link from the one before it
+     *
+     * @return true if the output link Idea was rebuilt
+     */
+    public boolean isOutputLinkChanged() {
+        return outputLinkChanged;
     }
 
     public void processInputLink() {
+        InputLinkRecorder recorder = inputLinkRecorder;
+        if (recorder != null) {
+            try {
+                if (getInputLinkJson() != null) recorder.recordJson(getInputLinkJson());
+                else recorder.record(getInputLinkIdea());
+            } catch (IOException e) {
+                logger.severe("Error while recording the input link" + e);
+            }
+        }
+        long start = System.nanoTime();
+        inputLinkRejections = 0;
+        inputLinkIndex = null;
         setInputLinkIdentifier(getAgent().getInputOutput().getInputLink());
-        ((IdentifierImpl) getInputLinkIdentifier()).removeAllInputWmes();
-        SymbolFactoryImpl sf = (SymbolFactoryImpl) getAgent().getSymbols();
-        sf.reset();
-        processInputLink(getInputLinkIdea(), getInputLinkIdentifier());
+        inputLinkStringStale = true;
+        if (getInputLinkJson() != null) {
+            if (!isIncrementalInputLink()) inputLinkMirror = null; // Rebuilt from scratch
+            processInputLinkJson(getInputLinkJson());
+        } else if (isIncrementalInputLink()) {
+            processInputLinkIncrementally();
+        } else {
+            inputLinkMirror = null;
+            ((IdentifierImpl) getInputLinkIdentifier()).removeAllInputWmes();
+            SymbolFactoryImpl sf = (SymbolFactoryImpl) getAgent().getSymbols();
+            sf.reset();
+            inputLinkWmeCount = 0;
+            processInputLink(getInputLinkIdea(), getInputLinkIdentifier());
+        }
+        if (inputLinkRejections > 0) rejectedInputWmes += inputLinkRejections;
+        if (inputLinkLimitWarned && inputLinkWmeCount < inputLinkWmeLimit) inputLinkLimitWarned = false;
+        recordLatency(CycleStage.INPUT_CONVERSION, start);
     }
 
+    /**
+     * Brings the input link in line with the input Idea by only adding, removing
+     * or updating the WMEs that changed since the previous call. The whole input
+     * link is rebuilt only when there is nothing to diff against, i.e. on the
+     * first call or after the agent was initialized.
+     */
+    public void processInputLinkIncrementally() {
+        updateInputLink(getInputLinkIdea(), getInputLinkMirror());
+    }
+
+    private InputLinkNode getInputLinkMirror() {
+        Identifier il = getInputLinkIdentifier();
+        if (inputLinkMirror == null || inputLinkMirror.getIdentifier() != il) {
+            ((IdentifierImpl) il).removeAllInputWmes();
+            SymbolFactoryImpl sf = (SymbolFactoryImpl) getAgent().getSymbols();
+            sf.reset();
+            inputLinkMirror = new InputLinkNode(il);
+            inputLinkWmeCount = 0;
+        }
+        return inputLinkMirror;
+    }
+
+    /**
+     * Streams a JSON document straight into input-link WMEs, with no
+     * intermediate Gson tree or Idea. The document is read as
+     * createIdeaFromJson() reads it: the single root key names the input link,
+     * empty objects are skipped, arrays become repeated attributes and an
+     * empty string stands for an identifier with no children.
+     *
+     * @param json the JSON document
+     */
+    public void processInputLinkJson(String json) {
+        InputLinkNode root = getInputLinkMirror();
+        try (JsonParser p = JSON_FACTORY.createParser(json)) {
+            boolean rootFound = false;
+            if (p.nextToken() == JsonToken.START_OBJECT) {
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    JsonToken token = p.nextToken();
+                    if (!rootFound && token == JsonToken.START_OBJECT) {
+                        rootFound = true;
+                        p.nextToken();
+                        updateInputLink(p, root);
+                    } else {
+                        p.skipChildren(); // Only one root key is taken as the input link
+                    }
+                }
+            }
+            if (!rootFound) {
+                root.beginUpdate();
+                inputLinkWmeCount -= root.removeUnclaimed();
+            }
+        } catch (IOException e) {
+            logger.severe("Error while reading the input link JSON" + e);
+        }
+    }
+
+    // The parser is on the first field name of an object, or on its end
+    private void updateInputLink(JsonParser p, InputLinkNode node) throws IOException {
+        node.beginUpdate();
+        int position = 0;
+        while (p.currentToken() == JsonToken.FIELD_NAME) {
+            String name = p.currentName();
+            JsonToken token = p.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                while ((token = p.nextToken()) != JsonToken.END_ARRAY) {
+                    if (updateInputLinkValue(p, token, name, node, position, true)) position++;
+                }
+            } else if (updateInputLinkValue(p, token, name, node, position, false)) {
+                position++;
+            }
+            p.nextToken();
+        }
+        inputLinkWmeCount -= node.removeUnclaimed();
+    }
+
+    // The parser is on the first field name of an object, or on its end
+    private static void skipObject(JsonParser p) throws IOException {
+        while (p.currentToken() == JsonToken.FIELD_NAME) {
+            p.nextToken();
+            p.skipChildren();
+            p.nextToken();
+        }
+    }
+
+    private boolean updateInputLinkValue(JsonParser p, JsonToken token, String name, InputLinkNode node, int position, boolean inArray) throws IOException {
+        Object value;
+        switch (token) {
+            case START_OBJECT:
+                // Empty objects are skipped, unless they are array elements
+                if (p.nextToken() == JsonToken.END_OBJECT && !inArray) return false;
+                InputLinkNode object = updateInputLinkChild(node, position, name, null);
+                if (object == null) {
+                    skipObject(p);
+                    return false;
+                }
+                updateInputLink(p, object);
+                return true;
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                value = p.getDoubleValue();
+                break;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                value = p.getBooleanValue();
+                break;
+            case VALUE_STRING:
+                value = p.getText();
+                break;
+            default:
+                p.skipChildren(); // Nested arrays and nulls are not representable
+                return false;
+        }
+        if (value.equals("")) {
+            InputLinkNode child = updateInputLinkChild(node, position, name, null);
+            if (child == null) return false;
+            child.beginUpdate();
+            inputLinkWmeCount -= child.removeUnclaimed();
+            return true;
+        }
+        value = toInputLinkValue(value);
+        if (value == null) return false;
+        return updateInputLinkChild(node, position, name, value) != null;
+    }
+
+    /**
+     * Matches an input-link child against the mirror, adding its WME if it is
+     * new or updating its value if it changed
+     *
+     * @param node the parent node
+     * @param position position of the child among its siblings
+     * @param name attribute name
+     * @param value converted value, or null for an identifier
+     * @return the child node, or null if a new WME was rejected by the input-link limit
+     */
+    private InputLinkNode updateInputLinkChild(InputLinkNode node, int position, String name, Object value) {
+        boolean isIdentifier = value == null;
+        InputLinkNode child = node.claim(position, name, isIdentifier);
+        if (child == null) {
+            if (!admitInputWme()) return null;
+            child = createInputLinkNode(node.getIdentifier(), name, value);
+            node.addChild(child);
+            inputLinkWmeCount++;
+        } else if (!isIdentifier && !value.equals(child.getValue())) {
+            child.getInputWme().update(createInputLinkSymbol(value));
+            child.setValue(value);
+        }
+        return child;
+    }
+
+    /**
+     * Gets the symbol for an input-link attribute name. Attribute names repeat
+     * from one cycle to the next, so their symbols are cached instead of being
+     * looked up in the symbol table for every WME.
+     *
+     * @param name the attribute name
+     * @return the attribute symbol
+     */
+    private StringSymbol getAttributeSymbol(String name) {
+        StringSymbol symbol = attributeSymbols.get(name);
+        if (symbol == null) {
+            if (attributeSymbols.size() >= MAX_ATTRIBUTE_SYMBOLS) attributeSymbols.clear();
+            symbol = getAgent().getSymbols().createString(name);
+            attributeSymbols.put(name, symbol);
+        }
+        return symbol;
+    }
+
+    private void updateInputLink(Idea il, InputLinkNode node) {
+        node.beginUpdate();
+        if (il != null) {
+            List<Idea> parts = il.getL();
+            for (int i = 0; i < parts.size(); i++) {
+                Idea w = parts.get(i);
+                boolean isIdentifier = w.getValue() == null || w.getValue().equals("");
+                Object value = isIdentifier ? null : toInputLinkValue(w.getValue());
+                if (!isIdentifier && value == null) continue; // Not representable, as in processInputLink(Idea, Identifier)
+
+                InputLinkNode child = updateInputLinkChild(node, i, w.getName(), value);
+                if (isIdentifier && child != null) updateInputLink(w, child);
+            }
+        }
+        inputLinkWmeCount -= node.removeUnclaimed();
+    }
+
+    /**
+     * Tells whether a new input-link WME may be added, given the input-link
+     * limit. Past the limit, a warning is logged once until the input link
+     * shrinks again, and the WME is rejected under the REJECT policy.
+     */
+    private boolean admitInputWme() {
+        if (inputLinkWmeLimit <= 0 || inputLinkWmeCount < inputLinkWmeLimit) return true;
+        if (!inputLinkLimitWarned) {
+            logger.warning("Input link of agent " + agentName + " reached its limit of " + inputLinkWmeLimit + " WMEs");
+            inputLinkLimitWarned = true;
+        }
+        if (inputLinkLimitPolicy == InputLinkLimitPolicy.WARN) return true;
+        inputLinkRejections++;
+        return false;
+    }
+
+    /**
+     * Gets the number of WMEs on the input link, as last processed. Kept up to
+     * date as WMEs are added and removed, so it is free to sample.
+     *
+     * @return the number of input-link WMEs
+     */
+    public int getInputLinkWmeCount() {
+        return inputLinkWmeCount;
+    }
+
+    /**
+     * Gets the number of WMEs in the rete. Computed on demand, in O(WMEs).
+     *
+     * @return the number of WMEs
+     */
+    public synchronized int getReteWmeCount() {
+        return getAgent().getAllWmesInRete().size();
+    }
+
+    /**
+     * Gets the number of symbols in the symbol table. Computed on demand, in O(symbols).
+     *
+     * @return the number of symbols
+     */
+    public synchronized int getSymbolTableSize() {
+        return ((SymbolFactoryImpl) getAgent().getSymbols()).getAllSymbols().size();
+    }
+
+    /**
+     * Gets the number of identifiers in the symbol table. Computed on demand, in O(symbols).
+     *
+     * @return the number of identifiers
+     */
+    public synchronized int getIdentifierCount() {
+        int count = 0;
+        for (Symbol symbol : ((SymbolFactoryImpl) getAgent().getSymbols()).getAllSymbols()) {
+            if (symbol.asIdentifier() != null) count++;
+        }
+        return count;
+    }
+
+    public int getInputLinkWmeLimit() {
+        return inputLinkWmeLimit;
+    }
+
+    public InputLinkLimitPolicy getInputLinkLimitPolicy() {
+        return inputLinkLimitPolicy;
+    }
+
+    /**
+     * Caps the number of input-link WMEs. WMEs already on the input link keep
+     * being updated; only new WMEs past the limit are affected.
+     *
+     * @param limit the maximum number of WMEs, or 0 for no limit
+     * @param policy WARN to log and still add new WMEs, REJECT to log and leave them out
+     */
+    public void setInputLinkWmeLimit(int limit, InputLinkLimitPolicy policy) {
+        this.inputLinkWmeLimit = limit;
+        this.inputLinkLimitPolicy = policy;
+        this.inputLinkLimitWarned = false;
+    }
+
+    /**
+     * Gets the number of new input-link WMEs left out under the REJECT policy
+     *
+     * @return the number of WMEs rejected since the plugin was created
+     */
+    public long getRejectedInputWmes() {
+        return rejectedInputWmes;
+    }
+
+    private InputLinkNode createInputLinkNode(Identifier parent, String name, Object value) {
+        if (value == null) {
+            Identifier newID = getAgent().getSymbols().createIdentifier('W');
+            InputWme wme = getAgent().getInputOutput().addInputWme(parent, getAttributeSymbol(name), newID);
+            return new InputLinkNode(name, newID, wme, null);
+        }
+        InputWme wme = getAgent().getInputOutput().addInputWme(parent, getAttributeSymbol(name), createInputLinkSymbol(value));
+        return new InputLinkNode(name, null, wme, value);
+    }
+
+    /**
+     * Converts an Idea value to the value kept on the input link, dispatching on
+     * the value class. Integral numbers become integers and other numbers become
+     * doubles. Booleans and enums become strings. Strings holding a number are
+     * still read as doubles, as they always were.
+     *
+     * @param value the Idea value
+     * @return a Long, a Double, a String or null if the value is not representable
+     */
+    private Object toInputLinkValue(Object value) {
+        if (value instanceof String) {
+            Double d = Doubles.tryParse((String) value);
+            return d != null ? d : value;
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Double) return value;
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        if (value instanceof Boolean) return value.toString();
+        if (value instanceof Enum) return ((Enum<?>) value).name();
+        return Doubles.tryParse(value.toString());
+    }
+
+    private Symbol createInputLinkSymbol(Object value) {
+        SymbolFactory sf = getAgent().getSymbols();
+        if (value instanceof Long) return sf.createInteger((Long) value);
+        if (value instanceof Double) return sf.createDouble((Double) value);
+        return sf.createString((String) value);
+    }
+
+    /**
+     * Adds the WMEs of an Idea under an input-link identifier. The WMEs count
+     * towards the input-link gauge and limit.
+     *
+     * @param il the Idea
+     * @param id the identifier the WMEs are added to
+     */
     public void processInputLink(Idea il, Identifier id) {
         if (il != null) {
             List<Idea> parts = il.getL();
             for (Idea w : parts) {
                 if (w.getValue() == null || w.getValue().equals("")){
+                    if (!admitInputWme()) continue;
                     Identifier id2 = createIdWME(id, w.getName());
+                    inputLinkWmeCount++;
                     processInputLink(w, id2);
                 }
                 else{
-                    Object value;
-
-                    if (Doubles.tryParse(w.getValue().toString()) != null) {
-                        value = Doubles.tryParse(w.getValue().toString());
-                        createFloatWME(id, w.getName(), (double) value);
-                    }  else if (w.getValue() instanceof String) {
-                        value = (String) w.getValue();
-                        createStringWME(id, w.getName(), (String) value);
+                    Object value = toInputLinkValue(w.getValue());
+                    if (value != null && admitInputWme()) {
+                        getAgent().getInputOutput().addInputWme(id, getAttributeSymbol(w.getName()), createInputLinkSymbol(value));
+                        inputLinkWmeCount++;
                     }
                 }
             }
@@ -579,29 +1574,140 @@ public class SOARPlugin {
     }
 
     public Wme searchInInputOutputLinkWME(String idName, Identifier id) {
+        return searchInInputOutputLinkWME(idName, id, 0);
+    }
 
-        List<Wme> wmes = Wmes.matcher(getAgent()).filter(id);
-
-        Wme resultId = null;
-
-        for (Wme wme : wmes) {
+    private Wme searchInInputOutputLinkWME(String idName, Identifier id, int depth) {
+        Iterator<Wme> wmes = id.getWmes();
+        while (wmes.hasNext()) {
+            Wme wme = wmes.next();
             Symbol a = wme.getAttribute();
             Symbol v = wme.getValue();
 
             if (a.toString().equals(idName)) {
-                resultId = wme;
-                break;
-            } else {
-                if (v.asIdentifier() != null) {
-                    resultId = searchInInputOutputLinkWME(idName, v.asIdentifier());
-                } else {
-                    resultId = null;
-                }
+                return wme;
+            } else if (v.asIdentifier() != null && depth < MAX_SEARCH_DEPTH) {
+                Wme resultId = searchInInputOutputLinkWME(idName, v.asIdentifier(), depth + 1);
+                if (resultId != null) return resultId;
             }
         }
+        return null;
+    }
+
+    /**
+     * Looks up an input-link node by its path of attribute names, e.g.
+     * CURRENT_PERCEPTION.CONFIGURATION.TRAFFIC_LIGHT, in O(path length). The
+     * first child is taken where an attribute repeats.
+     */
+    private InputLinkNode searchInputLinkNode(String path) {
+        InputLinkNode node = getInputLinkIndex();
+        int start = 0;
+        while (node != null && start <= path.length()) {
+            int end = path.indexOf('.', start);
+            if (end < 0) end = path.length();
+            node = node.getChild(path.substring(start, end));
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Gets the mirror of the input link when there is one. Otherwise the input
+     * link was rebuilt from an Idea, and its WMEs are indexed on the first
+     * lookup after each cycle, in working memory order.
+     */
+    private InputLinkNode getInputLinkIndex() {
+        Identifier il = getAgent().getInputOutput().getInputLink();
+        if (inputLinkMirror != null && inputLinkMirror.getIdentifier() == il) return inputLinkMirror;
+        if (inputLinkIndex == null || inputLinkIndex.getIdentifier() != il) {
+            inputLinkIndex = new InputLinkNode(il);
+            indexInputLink(inputLinkIndex, 0);
+        }
+        return inputLinkIndex;
+    }
+
+    private void indexInputLink(InputLinkNode node, int depth) {
+        Iterator<Wme> wmes = node.getIdentifier().getWmes();
+        while (wmes.hasNext()) {
+            Wme wme = wmes.next();
+            Identifier child = wme.getValue().asIdentifier();
+            InputLinkNode childNode = InputLinkNode.indexed(wme.getAttribute().toString(), child, wme,
+                    child == null ? inputLinkValue(wme.getValue()) : null);
+            node.addChild(childNode);
+            if (child != null && depth < MAX_SEARCH_DEPTH) indexInputLink(childNode, depth + 1);
+        }
+    }
+
+    // The value the mirror would hold for a symbol
+    private static Object inputLinkValue(Symbol value) {
+        IntegerSymbol integer = value.asInteger();
+        if (integer != null) return integer.getValue();
+        DoubleSymbol d = value.asDouble();
+        if (d != null) return d.getValue();
+        StringSymbol string = value.asString();
+        return string != null ? string.getValue() : value.toString();
+    }
+
+    /**
+     * Gets the identifier at a path of the input link, as last processed
+     *
+     * @param path attribute names separated by dots, e.g. CURRENT_PERCEPTION.CONFIGURATION
+     * @return the identifier, or null if the path does not lead to one
+     */
+    public Identifier searchInputLinkPath(String path) {
+        InputLinkNode node = searchInputLinkNode(path);
+        return node != null ? node.getIdentifier() : null;
+    }
+
+    /**
+     * Gets the value at a path of the input link, as last processed
+     *
+     * @param path attribute names separated by dots, e.g. CURRENT_PERCEPTION.CONFIGURATION.SMARTCAR_INFO
+     * @return a Long, a Double or a String, or null if the path does not lead to a value
+     */
+    public Object searchInputLinkPathValue(String path) {
+        InputLinkNode node = searchInputLinkNode(path);
+        return node != null ? node.getValue() : null;
+    }
 
-        return resultId;
+    /**
+     * Gets the WME at a path of the input link, as last processed
+     *
+     * @param path attribute names separated by dots
+     * @return the WME, or null if there is none
+     */
+    public Wme searchInputLinkPathWME(String path) {
+        InputLinkNode node = searchInputLinkNode(path);
+        return node != null ? node.getWme() : null;
+    }
 
+    /**
+     * Gets the WME at a path of the output link, following one attribute per
+     * level without building any intermediate list
+     *
+     * @param path attribute names separated by dots, e.g. SoarCommandChange.quantity
+     * @return the WME, or null if there is none
+     */
+    public Wme searchOutputLinkPathWME(String path) {
+        Identifier id = getOutputLinkIdentifier();
+        Wme found = null;
+        int start = 0;
+        while (start <= path.length()) {
+            if (id == null) return null;
+            int end = path.indexOf('.', start);
+            if (end < 0) end = path.length();
+            found = null;
+            Iterator<Wme> wmes = id.getWmes();
+            while (wmes.hasNext() && found == null) {
+                Wme wme = wmes.next();
+                String attribute = wme.getAttribute().toString();
+                if (attribute.length() == end - start && path.startsWith(attribute, start)) found = wme;
+            }
+            if (found == null) return null;
+            id = found.getValue().asIdentifier();
+            start = end + 1;
+        }
+        return found;
     }
 
     
@@ -610,16 +1716,9 @@ public class SOARPlugin {
     -------------------------------------------------------------------------*/
 
     public Object createJavaObject(String classname) {
-        Class type = null;
-        Object javaObject = null;
-        try {
-            type = Class.forName(classname);
-            javaObject = type.newInstance();
-            type.cast(javaObject);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return (javaObject);
+        SoarBeanMapper mapper = SoarBeanMapper.forName(classname);
+        if (mapper == null) return null;
+        return (mapper.newInstance());
     }
 
     public boolean isNumber(Object o) {
@@ -700,18 +1799,10 @@ public class SOARPlugin {
     }
 
     public void setField(Object o, String fieldName, Object value) {
-        Class type = o.getClass();
         try {
-            Field[] fieldList = type.getFields();
-            for (Field field : fieldList) {
-                String fieldClass = field.getType().getCanonicalName();
-                if (field.getName().equals(fieldName)) {
-                    field.set(o, convertObject(value, fieldClass));
-                }
-            }
+            SoarBeanMapper.forClass(o.getClass()).setField(o, fieldName, value);
         } catch (Exception e) {
             e.printStackTrace();
-            System.out.println("Exception: " + e.getStackTrace().toString());
         }
     }
 
@@ -750,12 +1841,240 @@ public class SOARPlugin {
     
     public void loadRules(String path) {
         try {
-           SoarCommands.source(getAgent().getInterpreter(), path);
+           sourceRules(path);
            resetSOAR();
            
         } catch (Exception e) {e.printStackTrace();}
     }
 
+    /**
+     * Reloads a rule file into the running agent without initializing it.
+     * The file is sourced into a scratch agent first, so its other commands
+     * are not run again, and its productions are diffed against the ones
+     * loaded before from the same file: removed productions are excised, new
+     * ones are added and changed ones are replaced. Productions from other
+     * files and working memory are kept.
+     *
+     * Each production is reloaded on its own. If a changed production cannot
+     * be added, the old one is put back and the reload goes on with the next
+     * one. If the file cannot be sourced up to its end, the productions read
+     * before the error are still reloaded but none is excised. The errors are
+     * logged and returned by getReloadFailures().
+     *
+     * @param path path of the .soar file
+     * @return the number of productions added, replaced or excised
+     */
+    public synchronized int reloadRules(String path) {
+        List<String> failures = new ArrayList<>();
+        reloadFailures = failures;
+        Map<String, String> reloaded = new LinkedHashMap<>();
+        boolean complete = true;
+        Agent scratch = new Agent();
+        try {
+            for (RhsFunctionHandler handler : getAgent().getRhsFunctions().getHandlers()) {
+                scratch.getRhsFunctions().registerHandler(handler);
+            }
+            Map<String, Production> before = productionsByName(scratch);
+            try {
+                SoarCommands.source(scratch.getInterpreter(), path);
+            } catch (SoarException e) {
+                logger.warning("Error while reloading rules from " + path + ": " + e.getMessage());
+                failures.add(path + ": " + e.getMessage());
+                complete = false;
+            }
+            for (Production production : productionsByName(scratch).values()) {
+                if (before.get(production.getName()) != production) {
+                    reloaded.put(production.getName(), printProduction(production));
+                }
+            }
+        } finally {
+            scratch.dispose();
+        }
+
+        int changes = 0;
+        ProductionManager productions = getAgent().getProductions();
+        Set<String> loaded = loadedProductions.computeIfAbsent(canonicalPath(path), k -> new HashSet<>());
+        if (complete) {
+            for (Iterator<String> it = loaded.iterator(); it.hasNext(); ) {
+                String name = it.next();
+                if (reloaded.containsKey(name)) continue;
+                Production production = productions.getProduction(name);
+                if (production != null) {
+                    productions.exciseProduction(production, false);
+                    changes++;
+                }
+                it.remove();
+            }
+        }
+        for (Entry<String, String> entry : reloaded.entrySet()) {
+            String name = entry.getKey();
+            Production production = productions.getProduction(name);
+            String old = production != null ? printProduction(production) : null;
+            if (!entry.getValue().equals(old)) {
+                if (production != null) productions.exciseProduction(production, false);
+                try {
+                    getAgent().getInterpreter().eval(entry.getValue());
+                    changes++;
+                } catch (SoarException e) {
+                    logger.warning("Error while reloading production " + name + " from " + path + ": " + e.getMessage());
+                    failures.add(name + ": " + e.getMessage());
+                    if (old == null) continue;
+                    try {
+                        getAgent().getInterpreter().eval(old);
+                    } catch (SoarException e2) {
+                        logger.severe("Error while restoring production " + name + e2);
+                        continue;
+                    }
+                }
+            }
+            rememberProduction(loaded, name);
+        }
+        return changes;
+    }
+
+    /**
+     * @return the errors of the last call to reloadRules(), one per production
+     * that could not be reloaded or per file that could not be sourced
+     */
+    public synchronized List<String> getReloadFailures() {
+        return Collections.unmodifiableList(reloadFailures);
+    }
+
+    // Sources a rule file into the agent and remembers the productions it
+    // added or replaced, even if it fails part way. Every agent parses the
+    // file itself: jsoar compiles each production straight into the rete and
+    // symbol table of its agent, with no parsed form that could be shared
+    // between agents, so caching the file text would only save reading it.
+    private void sourceRules(String path) throws SoarException {
+        Map<String, Production> before = productionsByName(getAgent());
+        try {
+            SoarCommands.source(getAgent().getInterpreter(), path);
+        } finally {
+            Set<String> loaded = loadedProductions.computeIfAbsent(canonicalPath(path), k -> new HashSet<>());
+            for (Production production : productionsByName(getAgent()).values()) {
+                if (before.get(production.getName()) != production) rememberProduction(loaded, production.getName());
+            }
+        }
+    }
+
+    // A production belongs to the file that defined it last
+    private void rememberProduction(Set<String> loaded, String name) {
+        for (Set<String> other : loadedProductions.values()) {
+            if (other != loaded) other.remove(name);
+        }
+        loaded.add(name);
+    }
+
+    // Chunks are saved as printed by jsoar, starting with "sp {name"
+    private static String chunkName(String chunk) {
+        int start = chunk.indexOf('{') + 1;
+        int end = start;
+        while (end < chunk.length() && !Character.isWhitespace(chunk.charAt(end))) end++;
+        return start > 0 && end > start ? chunk.substring(start, end) : null;
+    }
+
+    private static Map<String, Production> productionsByName(Agent agent) {
+        Map<String, Production> byName = new LinkedHashMap<>();
+        for (ProductionType type : ProductionType.values()) {
+            for (Production production : agent.getProductions().getProductions(type)) {
+                byName.put(production.getName(), production);
+            }
+        }
+        return byName;
+    }
+
+    // The printed form is normalized, so whitespace and comments do not make
+    // a production different, and can be evaluated back
+    private static String printProduction(Production production) {
+        StringWriter text = new StringWriter();
+        Printer printer = new Printer(text);
+        production.print(printer, false);
+        printer.flush();
+        return text.toString();
+    }
+
+    private static String canonicalPath(String path) {
+        File file = new File(path);
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Checkpoints the working memory of the agent to a memory-mapped file: the
+     * o-supported WMEs built up on the top state, the goal stack and the
+     * learned chunks. A cycle in progress is finished first.
+     *
+     * @param file the checkpoint file, replaced if it exists
+     * @return the number of WMEs saved
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized int saveCheckpoint(File file) throws IOException {
+        if (phase != -1) finish_msteps();
+        WorkingMemoryCheckpoint checkpoint = WorkingMemoryCheckpoint.capture(getAgent(), cycleCount);
+        checkpoint.write(file);
+        return checkpoint.wmes.size();
+    }
+
+    /**
+     * Restores a checkpoint saved by saveCheckpoint(), typically right after
+     * the plugin is created. The chunks are added back and the saved WMEs are
+     * recreated, with their o-support, by a one-shot operator that runs in a
+     * single decision cycle and is then excised. Substates are not restored:
+     * they come back from the impasses of the restored top state. Only useful
+     * with persistent state, as otherwise the next step initializes the agent.
+     *
+     * @param file the checkpoint file
+     * @return the number of WMEs restored
+     * @throws IOException if the file cannot be read or is not a checkpoint
+     */
+    public synchronized int restoreCheckpoint(File file) throws IOException {
+        if (phase != -1) finish_msteps();
+        if (!isPersistentState()) logger.warning("Restoring a checkpoint into agent " + agentName + " without persistent state; it is lost on the next step");
+        WorkingMemoryCheckpoint checkpoint = WorkingMemoryCheckpoint.read(file);
+        ProductionManager productions = getAgent().getProductions();
+        for (String chunk : checkpoint.chunks) {
+            String name = chunkName(chunk);
+            if (name != null && productions.getProduction(name) != null) continue;
+            try {
+                getAgent().getInterpreter().eval(chunk);
+            } catch (SoarException e) {
+                logger.warning("Error while restoring chunk " + name + ": " + e.getMessage());
+            }
+        }
+        cycleCount = checkpoint.cycles;
+        if (checkpoint.goals.size() > 1) {
+            logger.info("Checkpoint of agent " + agentName + " had " + checkpoint.goals.size() + " states; substates are rebuilt from impasses");
+        }
+        if (checkpoint.wmes.isEmpty()) return 0;
+
+        try {
+            getAgent().getInterpreter().eval("sp {" + RESTORE_PROPOSE + "\n"
+                    + "   (state <s> ^superstate nil)\n"
+                    + "-->\n"
+                    + "   (<s> ^operator <o> + !)\n"
+                    + "   (<o> ^name " + RESTORE_OPERATOR + ")}");
+            getAgent().getInterpreter().eval("sp {" + RESTORE_APPLY + "\n"
+                    + "   (state <s> ^operator <o>)\n"
+                    + "   (<o> ^name " + RESTORE_OPERATOR + ")\n"
+                    + "-->\n"
+                    + checkpoint.toActions() + "}");
+            getAgent().runFor(1, RunType.DECISIONS);
+        } catch (SoarException e) {
+            throw new IOException("Error while restoring checkpoint " + file, e);
+        } finally {
+            for (String name : new String[]{RESTORE_PROPOSE, RESTORE_APPLY}) {
+                Production production = productions.getProduction(name);
+                if (production != null) productions.exciseProduction(production, false);
+            }
+        }
+        inputLinkStringStale = true;
+        outputLinkStringStale = true;
+        return checkpoint.wmes.size();
+    }
+
     public int getPhase() {
         return phase;
     }
@@ -786,6 +2105,7 @@ public class SOARPlugin {
 
     public void setAgent(Agent agent) {
         this.agent = agent;
+        attributeSymbols.clear();
     }
 
     public ThreadedAgent getThreaded() {
@@ -796,20 +2116,50 @@ public class SOARPlugin {
         this.threaded = threaded;
     }
 
-    public String getInputLinkAsString() {
+    /**
+     * Gets the input link as a String. The String is only rendered when this
+     * method is called after the input link changed, unless eager rendering is set.
+     *
+     * @return the input link as a String
+     */
+    public synchronized String getInputLinkAsString() {
+        if (inputLinkStringStale && getAgent() != null) getWMEStringInput();
         return inputLinkAsString;
     }
 
-    public void setInputLinkAsString(String inputLinkAsString) {
+    public synchronized void setInputLinkAsString(String inputLinkAsString) {
         this.inputLinkAsString = inputLinkAsString;
+        inputLinkStringStale = false;
     }
 
-    public String getOutputLinkAsString() {
+    /**
+     * Gets the output link as a String. The String is only rendered when this
+     * method is called after a Soar phase ran, unless eager rendering is set.
+     *
+     * @return the output link as a String
+     */
+    public synchronized String getOutputLinkAsString() {
+        if (outputLinkStringStale && getAgent() != null) getWMEStringOutput();
         return outputLinkAsString;
     }
 
-    public void setOutputLinkAsString(String outputLinkAsString) {
+    public synchronized void setOutputLinkAsString(String outputLinkAsString) {
         this.outputLinkAsString = outputLinkAsString;
+        outputLinkStringStale = false;
+    }
+
+    public boolean isEagerLinkRendering() {
+        return eagerLinkRendering;
+    }
+
+    /**
+     * When set, the input and output links are rendered as Strings around every
+     * Soar phase, as a debugging aid. Otherwise they are only rendered on demand.
+     *
+     * @param eagerLinkRendering true to render the links at every phase
+     */
+    public void setEagerLinkRendering(boolean eagerLinkRendering) {
+        this.eagerLinkRendering = eagerLinkRendering;
     }
 
     public void setInputLinkIdentifier(Identifier inputLinkIdentifier) {
@@ -824,6 +2174,38 @@ public class SOARPlugin {
         this.debugState = debugState;
     }
 
+    public boolean isIncrementalInputLink() {
+        return incrementalInputLink || persistentState;
+    }
+
+    /**
+     * When set, processInputLink() diffs the input Idea against the previous one
+     * and only touches the WMEs that changed, instead of rebuilding the whole
+     * input link. Identifiers of unchanged WMEs are kept from cycle to cycle.
+     *
+     * @param incrementalInputLink true to enable incremental input-link updates
+     */
+    public void setIncrementalInputLink(boolean incrementalInputLink) {
+        this.incrementalInputLink = incrementalInputLink;
+    }
+
+    public boolean isPersistentState() {
+        return persistentState;
+    }
+
+    /**
+     * When set, a step no longer initializes the agent before running. Working
+     * memory, the goal stack and rete matches are kept from cycle to cycle, only
+     * the input link is updated (incrementally), and each step runs a single
+     * decision cycle up to the end of the output phase. This lets operators
+     * span several steps.
+     *
+     * @param persistentState true to keep the agent state across steps
+     */
+    public void setPersistentState(boolean persistentState) {
+        this.persistentState = persistentState;
+    }
+
     public List<Identifier> getOperatorsPathList() {
         return operatorsPathList;
     }
@@ -838,6 +2220,22 @@ public class SOARPlugin {
 
     public void setInputLinkIdea(Idea inputLinkAO) {
         this.inputLinkIdea = inputLinkAO;
+        this.inputLinkJson = null;
+    }
+
+    public String getInputLinkJson() {
+        return inputLinkJson;
+    }
+
+    /**
+     * Sets the input link as a JSON document. It is streamed into WMEs by
+     * processInputLink(), with no intermediate Idea, until an input Idea is set.
+     *
+     * @param inputLinkJson the JSON document, e.g. {"InputLink":{...}}
+     */
+    public void setInputLinkJson(String inputLinkJson) {
+        this.inputLinkJson = inputLinkJson;
+        this.inputLinkIdea = null;
     }
 
     public Idea getOutputLinkIdea() {
@@ -846,5 +2244,6 @@ public class SOARPlugin {
 
     public void setOutputLinkIdea(Idea outputLinkAO) {
         this.outputLinkIdea = outputLinkAO;
+        outputLinkGeneration = -1;
     }
 }
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import br.unicamp.cst.representation.idea.Idea;
+
+/**
+ * Immutable state of a SOARPlugin after a cycle, or after a phase when it is
+ * stepped with mstep(). A new snapshot is published through a volatile
+ * reference every time, so readers on other threads never lock the plugin and
+ * always see the values of a single cycle. The output link Idea is never
+ * modified once published.
+ */
+public class SOARSnapshot {
+
+    private final long cycle;
+    private final long timestamp;
+    private final Idea outputLinkIdea;
+    private final int phase;
+    private final int debugState;
+    private final boolean outputLinkChanged;
+    private final String inputLinkAsString;
+    private final String outputLinkAsString;
+
+    public SOARSnapshot(long cycle, Idea outputLinkIdea, int phase, int debugState, boolean outputLinkChanged,
+                        String inputLinkAsString, String outputLinkAsString) {
+        this.cycle = cycle;
+        this.timestamp = System.currentTimeMillis();
+        this.outputLinkIdea = outputLinkIdea;
+        this.phase = phase;
+        this.debugState = debugState;
+        this.outputLinkChanged = outputLinkChanged;
+        this.inputLinkAsString = inputLinkAsString;
+        this.outputLinkAsString = outputLinkAsString;
+    }
+
+    /**
+     * Gets the number of cycles the plugin had completed when this snapshot
+     * was taken
+     *
+     * @return the cycle count
+     */
+    public long getCycle() {
+        return cycle;
+    }
+
+    /**
+     * Gets the time this snapshot was taken at
+     *
+     * @return the time, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Idea getOutputLinkIdea() {
+        return outputLinkIdea;
+    }
+
+    public int getPhase() {
+        return phase;
+    }
+
+    public int getDebugState() {
+        return debugState;
+    }
+
+    public boolean isOutputLinkChanged() {
+        return outputLinkChanged;
+    }
+
+    /**
+     * Gets the input link rendered as a string
+     *
+     * @return the string, or null if link strings were turned off in the plugin
+     */
+    public String getInputLinkAsString() {
+        return inputLinkAsString;
+    }
+
+    /**
+     * Gets the output link rendered as a string
+     *
+     * @return the string, or null if link strings were turned off in the plugin
+     */
+    public String getOutputLinkAsString() {
+        return outputLinkAsString;
+    }
+}
@@ -0,0 +1,366 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import br.unicamp.cst.representation.idea.Idea;
+import com.google.common.primitives.Doubles;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Maps Soar output commands to Java beans. A mapper is built once per bean class,
+ * resolving its constructor and fields to method handles, and is then cached for
+ * the whole JVM, so decoding a command costs O(fields) with no reflective lookups.
+ *
+ * Commands follow the conventions of JSoarCodelet.buildObject: the command name
+ * is the simple name of the bean class, leaf children set the fields with the
+ * same name, and a child holding children of its own sets its field with the
+ * bean(s) built from those children, each named after its own class. Commands
+ * whose name contains ARRAY are decoded into a list with one bean per child.
+ *
+ * Plain classes need a no-arg constructor. Records are built through their
+ * canonical constructor. Array and Collection fields collect every nested bean.
+ */
+public class SoarBeanMapper {
+
+    private static final Logger logger = Logger.getLogger(SoarBeanMapper.class.getName());
+
+    public static final String ARRAY = "ARRAY";
+
+    private static final ClassValue<SoarBeanMapper> MAPPERS = new ClassValue<SoarBeanMapper>() {
+        @Override
+        protected SoarBeanMapper computeValue(Class<?> type) {
+            return new SoarBeanMapper(type);
+        }
+    };
+
+    private static final Map<String, Optional<SoarBeanMapper>> MAPPERS_BY_NAME = new ConcurrentHashMap<>();
+
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Class<?> type;
+    private final boolean record;
+    private final MethodHandle constructor;
+    private final Map<String, Property> properties = new HashMap<>();
+    private final Object[] defaultArguments;
+
+    private static class Property {
+        final int index;
+        final Class<?> type;
+        final Class<?> elementType;
+        final MethodHandle setter;
+
+        Property(int index, Class<?> type, Class<?> elementType, MethodHandle setter) {
+            this.index = index;
+            this.type = type;
+            this.elementType = elementType;
+            this.setter = setter;
+        }
+
+        boolean isMultiValued() {
+            return elementType != null;
+        }
+    }
+
+    private SoarBeanMapper(Class<?> type) {
+        this.type = type;
+        this.record = type.isRecord();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            if (record) {
+                RecordComponent[] components = type.getRecordComponents();
+                Class<?>[] parameterTypes = new Class<?>[components.length];
+                defaultArguments = new Object[components.length];
+                for (int i = 0; i < components.length; i++) {
+                    Class<?> componentType = components[i].getType();
+                    parameterTypes[i] = componentType;
+                    defaultArguments[i] = defaultValue(componentType);
+                    properties.put(components[i].getName(), new Property(i, componentType, elementTypeOf(componentType), null));
+                }
+                Constructor<?> canonical = type.getDeclaredConstructor(parameterTypes);
+                canonical.setAccessible(true);
+                constructor = lookup.unreflectConstructor(canonical).asSpreader(Object[].class, components.length)
+                        .asType(MethodType.methodType(Object.class, Object[].class));
+            } else {
+                defaultArguments = null;
+                constructor = noArgsConstructor(lookup, type);
+                Set<String> seen = new HashSet<>();
+                for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) continue;
+                        if (!seen.add(field.getName())) continue; // Fields hidden by a subclass
+                        field.setAccessible(true);
+                        MethodHandle setter = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+                        properties.put(field.getName(), new Property(-1, field.getType(), elementTypeOf(field.getType()), setter));
+                    }
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IllegalArgumentException("Unable to map " + type.getName() + " as a Soar command bean", e);
+        }
+    }
+
+    private static MethodHandle noArgsConstructor(MethodHandles.Lookup lookup, Class<?> type) throws IllegalAccessException {
+        if (type.isInterface() || Modifier.isAbstract(type.getModifiers())) return null;
+        try {
+            Constructor<?> noArgs = type.getDeclaredConstructor();
+            noArgs.setAccessible(true);
+            return lookup.unreflectConstructor(noArgs).asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException e) {
+            return null; // Fields can still be set on existing instances
+        }
+    }
+
+    /**
+     * Gets the mapper of a bean class, creating it on first use
+     *
+     * @param type the bean class
+     * @return the mapper
+     */
+    public static SoarBeanMapper forClass(Class<?> type) {
+        return MAPPERS.get(type);
+    }
+
+    /**
+     * Gets the mapper of a bean class given its name, creating it on first use
+     *
+     * @param className fully qualified class name
+     * @return the mapper, or null if the class does not exist or cannot be mapped
+     */
+    public static SoarBeanMapper forName(String className) {
+        return MAPPERS_BY_NAME.computeIfAbsent(className, name -> {
+            try {
+                return Optional.of(forClass(Class.forName(name)));
+            } catch (ClassNotFoundException | LinkageError | IllegalArgumentException e) {
+                logger.warning("Unable to map Soar command " + name + ": " + e);
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    /**
+     * Builds the Java object of a command Idea, as described in the class comment
+     *
+     * @param command the command Idea
+     * @param package_with_beans_classes package of the bean classes
+     * @return the bean, a list of beans for ARRAY commands, or null if the command could not be decoded
+     */
+    public static Object buildObject(Idea command, String package_with_beans_classes) {
+        String commandType = command.getName();
+        if (commandType.toUpperCase().contains(ARRAY)) {
+            ArrayList<Object> arrayList = new ArrayList<>();
+            for (Idea element : command.getL()) {
+                Object object = buildObject(element, package_with_beans_classes);
+                if (object != null) arrayList.add(object);
+            }
+            return arrayList.size() > 0 ? arrayList : null;
+        }
+        SoarBeanMapper mapper = forName(package_with_beans_classes + "." + commandType);
+        if (mapper == null) return null;
+        return mapper.build(command, package_with_beans_classes);
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public boolean hasProperty(String name) {
+        return properties.containsKey(name);
+    }
+
+    /**
+     * Creates an empty instance of the bean. Records get default component values.
+     *
+     * @return the new instance, or null if the constructor failed
+     */
+    public Object newInstance() {
+        if (constructor == null) {
+            logger.severe("Unable to create an instance of " + type.getName() + ": no no-arg constructor");
+            return null;
+        }
+        try {
+            if (record) return constructor.invokeExact(defaultArguments.clone());
+            return constructor.invokeExact();
+        } catch (Throwable e) {
+            logger.severe("Unable to create an instance of " + type.getName() + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Builds a bean from a command Idea
+     *
+     * @param command the command Idea
+     * @param package_with_beans_classes package of the nested bean classes
+     * @return the bean, or null if it could not be created
+     */
+    public Object build(Idea command, String package_with_beans_classes) {
+        Object[] arguments = record ? defaultArguments.clone() : null;
+        Object bean = record ? null : newInstance();
+        if (!record && bean == null) return null;
+
+        for (Idea p : command.getL()) {
+            Property property = properties.get(p.getName());
+            if (property == null) continue;
+            Object value;
+            if (p.getL().isEmpty()) {
+                if (p.getValue() == null) continue;
+                value = convert(p.getValue(), property.type);
+            } else if (property.isMultiValued()) {
+                List<Object> values = new ArrayList<>();
+                for (Idea subP : p.getL()) {
+                    Object newObj = buildObject(subP, package_with_beans_classes);
+                    if (newObj != null) values.add(newObj);
+                }
+                value = toMultiValue(values, property);
+            } else {
+                value = null;
+                for (Idea subP : p.getL()) {
+                    value = buildObject(subP, package_with_beans_classes);
+                }
+            }
+            if (value == null && property.type.isPrimitive()) continue;
+            if (record) arguments[property.index] = value;
+            else set(bean, property, value);
+        }
+
+        if (record) {
+            try {
+                return constructor.invokeExact(arguments);
+            } catch (Throwable e) {
+                logger.severe("Unable to create an instance of " + type.getName() + ": " + e);
+                return null;
+            }
+        }
+        return bean;
+    }
+
+    /**
+     * Sets a field of a bean, converting the value to the field type
+     *
+     * @param bean the bean
+     * @param fieldName the field name
+     * @param value the value
+     * @return true if the field exists and was set
+     */
+    public boolean setField(Object bean, String fieldName, Object value) {
+        Property property = properties.get(fieldName);
+        if (property == null || record) return false;
+        Object converted = property.isMultiValued() ? value : convert(value, property.type);
+        if (converted == null && property.type.isPrimitive()) return false;
+        return set(bean, property, converted);
+    }
+
+    private boolean set(Object bean, Property property, Object value) {
+        try {
+            property.setter.invokeExact(bean, value);
+            return true;
+        } catch (Throwable e) {
+            logger.warning("Unable to set a field of " + type.getName() + ": " + e);
+            return false;
+        }
+    }
+
+    private static Object toMultiValue(List<Object> values, Property property) {
+        if (property.type.isArray()) {
+            Object array = Array.newInstance(property.elementType, values.size());
+            int i = 0;
+            for (Object v : values) {
+                if (!property.elementType.isInstance(v)) continue;
+                Array.set(array, i++, v);
+            }
+            return array;
+        }
+        return values;
+    }
+
+    private static Class<?> elementTypeOf(Class<?> fieldType) {
+        if (fieldType.isArray() && !fieldType.getComponentType().isPrimitive()) return fieldType.getComponentType();
+        if (Collection.class.isAssignableFrom(fieldType) && fieldType.isAssignableFrom(ArrayList.class)) return Object.class;
+        return null;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive()) return null;
+        if (type == boolean.class) return false;
+        if (type == char.class) return '\0';
+        if (type == double.class) return 0d;
+        if (type == float.class) return 0f;
+        if (type == long.class) return 0L;
+        if (type == int.class) return 0;
+        if (type == short.class) return (short) 0;
+        return (byte) 0;
+    }
+
+    /**
+     * Converts a value read from Soar to the type of a field
+     *
+     * @param value the value, usually a Double, a Long or a String
+     * @param target the field type
+     * @return the converted value, or null if it cannot be converted
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static Object convert(Object value, Class<?> target) {
+        if (value == null) return null;
+        try {
+            if (target == double.class || target == Double.class) return toNumber(value).doubleValue();
+            if (target == float.class || target == Float.class) return toNumber(value).floatValue();
+            if (target == long.class || target == Long.class) return toNumber(value).longValue();
+            if (target == int.class || target == Integer.class) return toNumber(value).intValue();
+            if (target == short.class || target == Short.class) return toNumber(value).shortValue();
+            if (target == byte.class || target == Byte.class) return toNumber(value).byteValue();
+            if (target == boolean.class || target == Boolean.class) {
+                if (value instanceof Boolean) return value;
+                if (value instanceof Number) return ((Number) value).doubleValue() != 0;
+                return Boolean.parseBoolean(value.toString());
+            }
+            if (target == char.class || target == Character.class) {
+                String s = value.toString();
+                return s.isEmpty() ? null : s.charAt(0);
+            }
+            if (target == String.class) return value.toString();
+            if (target.isEnum()) return Enum.valueOf((Class<Enum>) target, value.toString());
+            if (target == Object.class) {
+                if (value instanceof String) {
+                    Double d = Doubles.tryParse((String) value);
+                    return d != null ? d : value;
+                }
+                return value;
+            }
+            return target.isInstance(value) ? value : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Number toNumber(Object value) {
+        if (value instanceof Number) return (Number) value;
+        return Double.parseDouble(value.toString());
+    }
+}
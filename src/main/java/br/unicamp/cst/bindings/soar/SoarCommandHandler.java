@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import org.jsoar.kernel.symbols.Identifier;
+
+/**
+ * Receives the commands of a given name as they appear on the output link of
+ * a SOARPlugin, decoded into beans by SoarBeanMapper
+ *
+ * @param <T> the bean class of the command
+ */
+@FunctionalInterface
+public interface SoarCommandHandler<T> {
+
+    /**
+     * Receives one new command. Called on the thread running the agent.
+     *
+     * @param command the identifier of the command on the output link
+     * @param bean the decoded command, or null if it could not be decoded
+     */
+    void handle(Identifier command, T bean);
+}
@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2012  DCA-FEEC-UNICAMP
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v3
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * Contributors to this module:
+ *     W. Gibaut, R. R. Gudwin
+ ******************************************************************************/
+
+package br.unicamp.cst.bindings.soar;
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.Goal;
+import org.jsoar.kernel.Production;
+import org.jsoar.kernel.ProductionType;
+import org.jsoar.kernel.memory.Wme;
+import org.jsoar.kernel.memory.WmeImpl;
+import org.jsoar.kernel.symbols.DoubleSymbol;
+import org.jsoar.kernel.symbols.Identifier;
+import org.jsoar.kernel.symbols.IntegerSymbol;
+import org.jsoar.kernel.symbols.StringSymbol;
+import org.jsoar.kernel.symbols.Symbol;
+import org.jsoar.util.Printer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the state an agent built up in working memory to a compact binary
+ * file, written and read through a memory-mapped FileChannel, so a restarted
+ * agent can be brought back to it without running the cycles again.
+ *
+ * The checkpoint holds the o-supported WMEs reachable from the top state
+ * through other o-supported WMEs, the goal stack and the text of the learned
+ * chunks. Input and output links, architecture WMEs and elaborations are left
+ * out: they are rebuilt by the agent itself on the next cycle.
+ *
+ * The file is big-endian: the MAGIC and VERSION ints and the decision cycle
+ * count as a long, then the goal stack as an int count of (identifier,
+ * operator name) string pairs, then an int count of WMEs, each written as the
+ * int number of its identifier (0 for the top state), the attribute as a
+ * string and the tagged value: TAG_IDENTIFIER and an int number, TAG_INTEGER
+ * and a long, TAG_DOUBLE and a double, or TAG_STRING and a string, and last an
+ * int count of chunk texts. Strings are an int length in bytes and the UTF-8
+ * bytes.
+ */
+final class WorkingMemoryCheckpoint {
+
+    static final int MAGIC = 0x43535457; // "CSTW"
+    static final int VERSION = 1;
+
+    static final byte TAG_IDENTIFIER = 1;
+    static final byte TAG_INTEGER = 2;
+    static final byte TAG_DOUBLE = 3;
+    static final byte TAG_STRING = 4;
+
+    static final int MAX_DEPTH = 64;
+
+    /**
+     * A WME of the checkpoint, with identifiers replaced by their numbers
+     */
+    static final class Entry {
+        final int id;
+        final String attribute;
+        final Object value; // Integer identifier number wrapped in IdRef, Long, Double or String
+
+        Entry(int id, String attribute, Object value) {
+            this.id = id;
+            this.attribute = attribute;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Reference to an identifier of the checkpoint, by number
+     */
+    static final class IdRef {
+        final int number;
+
+        IdRef(int number) {
+            this.number = number;
+        }
+    }
+
+    long cycles;
+    final List<String[]> goals = new ArrayList<>();
+    final List<Entry> wmes = new ArrayList<>();
+    final List<String> chunks = new ArrayList<>();
+
+    private WorkingMemoryCheckpoint() {
+    }
+
+    /**
+     * Takes a checkpoint of an agent
+     *
+     * @param agent the agent, between cycles
+     * @param cycles the decision cycle count to record
+     * @return the checkpoint
+     */
+    static WorkingMemoryCheckpoint capture(Agent agent, long cycles) {
+        WorkingMemoryCheckpoint checkpoint = new WorkingMemoryCheckpoint();
+        checkpoint.cycles = cycles;
+        List<Goal> goals = agent.getGoalStack();
+        for (Goal goal : goals) {
+            Symbol operator = goal.getOperatorName();
+            checkpoint.goals.add(new String[]{goal.getIdentifier().toString(), operator == null ? "" : operator.toString()});
+        }
+        if (!goals.isEmpty()) {
+            Map<Identifier, Integer> numbers = new HashMap<>();
+            Identifier top = goals.get(0).getIdentifier();
+            numbers.put(top, 0);
+            checkpoint.captureWmes(top, numbers, 0);
+        }
+        for (Production production : agent.getProductions().getProductions(ProductionType.CHUNK)) {
+            StringWriter text = new StringWriter();
+            Printer printer = new Printer(text);
+            production.print(printer, false);
+            printer.flush();
+            checkpoint.chunks.add(text.toString());
+        }
+        return checkpoint;
+    }
+
+    private void captureWmes(Identifier id, Map<Identifier, Integer> numbers, int depth) {
+        int number = numbers.get(id);
+        Iterator<Wme> it = id.getWmes();
+        while (it.hasNext()) {
+            Wme wme = it.next();
+            if (!isOSupported(wme)) continue;
+            String attribute = symbolText(wme.getAttribute());
+            if (attribute == null) continue; // Identifier attributes are not restorable
+            Symbol value = wme.getValue();
+            Identifier child = value.asIdentifier();
+            if (child == null) {
+                Object constant = constantValue(value);
+                if (constant != null) wmes.add(new Entry(number, attribute, constant));
+                continue;
+            }
+            if (depth >= MAX_DEPTH) continue;
+            Integer childNumber = numbers.get(child);
+            boolean visited = childNumber != null;
+            if (!visited) {
+                childNumber = numbers.size();
+                numbers.put(child, childNumber);
+            }
+            wmes.add(new Entry(number, attribute, new IdRef(childNumber)));
+            if (!visited) captureWmes(child, numbers, depth + 1);
+        }
+    }
+
+    private static boolean isOSupported(Wme wme) {
+        return wme instanceof WmeImpl
+                && ((WmeImpl) wme).preference != null
+                && ((WmeImpl) wme).preference.o_supported;
+    }
+
+    private static String symbolText(Symbol symbol) {
+        StringSymbol string = symbol.asString();
+        return string != null ? string.getValue() : null;
+    }
+
+    private static Object constantValue(Symbol symbol) {
+        IntegerSymbol integer = symbol.asInteger();
+        if (integer != null) return integer.getValue();
+        DoubleSymbol real = symbol.asDouble();
+        if (real != null) return real.getValue();
+        return symbolText(symbol);
+    }
+
+    /**
+     * Writes the checkpoint to a file, replacing it
+     *
+     * @param file the checkpoint file
+     * @throws IOException if the file cannot be written
+     */
+    void write(File file) throws IOException {
+        List<byte[]> strings = new ArrayList<>();
+        long size = 4 + 4 + 8 + 4 + 4 + 4;
+        for (String[] goal : goals) {
+            size += encode(goal[0], strings) + encode(goal[1], strings);
+        }
+        for (Entry wme : wmes) {
+            size += 4 + encode(wme.attribute, strings) + 1;
+            if (wme.value instanceof IdRef) size += 4;
+            else if (wme.value instanceof String) size += encode((String) wme.value, strings);
+            else size += 8;
+        }
+        for (String chunk : chunks) size += encode(chunk, strings);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            Iterator<byte[]> encoded = strings.iterator();
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(cycles);
+            out.putInt(goals.size());
+            for (int i = 0; i < goals.size(); i++) {
+                putString(out, encoded.next());
+                putString(out, encoded.next());
+            }
+            out.putInt(wmes.size());
+            for (Entry wme : wmes) {
+                out.putInt(wme.id);
+                putString(out, encoded.next());
+                if (wme.value instanceof IdRef) {
+                    out.put(TAG_IDENTIFIER).putInt(((IdRef) wme.value).number);
+                } else if (wme.value instanceof Long) {
+                    out.put(TAG_INTEGER).putLong((Long) wme.value);
+                } else if (wme.value instanceof Double) {
+                    out.put(TAG_DOUBLE).putDouble((Double) wme.value);
+                } else {
+                    out.put(TAG_STRING);
+                    putString(out, encoded.next());
+                }
+            }
+            out.putInt(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) putString(out, encoded.next());
+            out.force();
+        }
+    }
+
+    // Encodes a string in writing order and returns the room it takes
+    private static int encode(String value, List<byte[]> strings) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        strings.add(bytes);
+        return 4 + bytes.length;
+    }
+
+    private static void putString(MappedByteBuffer out, byte[] bytes) {
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    /**
+     * Reads a checkpoint file
+     *
+     * @param file the checkpoint file
+     * @return the checkpoint
+     * @throws IOException if the file cannot be read or is not a checkpoint
+     */
+    static WorkingMemoryCheckpoint read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 8 || in.getInt() != MAGIC) throw new IOException("Not a working memory checkpoint: " + file);
+            int version = in.getInt();
+            if (version != VERSION) throw new IOException("Unsupported working memory checkpoint version " + version);
+            WorkingMemoryCheckpoint checkpoint = new WorkingMemoryCheckpoint();
+            checkpoint.cycles = in.getLong();
+            for (int i = in.getInt(); i > 0; i--) {
+                checkpoint.goals.add(new String[]{getString(in), getString(in)});
+            }
+            for (int i = in.getInt(); i > 0; i--) {
+                int id = in.getInt();
+                String attribute = getString(in);
+                byte tag = in.get();
+                Object value;
+                switch (tag) {
+                    case TAG_IDENTIFIER: value = new IdRef(in.getInt()); break;
+                    case TAG_INTEGER: value = in.getLong(); break;
+                    case TAG_DOUBLE: value = in.getDouble(); break;
+                    case TAG_STRING: value = getString(in); break;
+                    default: throw new IOException("Unknown value tag " + tag + " in working memory checkpoint");
+                }
+                checkpoint.wmes.add(new Entry(id, attribute, value));
+            }
+            for (int i = in.getInt(); i > 0; i--) checkpoint.chunks.add(getString(in));
+            return checkpoint;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt working memory checkpoint: " + file, e);
+        }
+    }
+
+    private static String getString(MappedByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds the actions of a production that recreates the checkpointed
+     * WMEs, with the top state bound to the variable s
+     *
+     * @return the actions, or an empty string if there is nothing to restore
+     */
+    String toActions() {
+        StringBuilder actions = new StringBuilder();
+        for (Entry wme : wmes) {
+            actions.append("   (").append(variable(wme.id)).append(" ^");
+            appendConstant(actions, wme.attribute);
+            actions.append(' ');
+            if (wme.value instanceof IdRef) actions.append(variable(((IdRef) wme.value).number));
+            else if (wme.value instanceof String) appendConstant(actions, (String) wme.value);
+            else actions.append(wme.value);
+            actions.append(")\n");
+        }
+        return actions.toString();
+    }
+
+    private static String variable(int number) {
+        return number == 0 ? "<s>" : "<i" + number + ">";
+    }
+
+    // Constants are always quoted, so they cannot be read back as numbers or variables
+    private static void appendConstant(StringBuilder out, String value) {
+        out.append('|');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '|' || c == '\\') out.append('\\');
+            out.append(c);
+        }
+        out.append('|');
+    }
+}
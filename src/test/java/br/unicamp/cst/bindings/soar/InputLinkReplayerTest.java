@@ -0,0 +1,99 @@
+package br.unicamp.cst.bindings.soar;
+
+import br.unicamp.cst.representation.idea.Idea;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class InputLinkReplayerTest {
+
+    private static final String SMART_CAR_JSON = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+
+    @Test
+    public void recordAndReplayTest() throws IOException {
+        SOARPlugin recorded = new SOARPlugin("testName", new File("src/test/resources/smartCar.soar"), false);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        InputLinkRecorder recorder = new InputLinkRecorder(log);
+        recorded.setInputLinkRecorder(recorder);
+
+        recorded.setInputLinkIdea((Idea) recorded.createIdeaFromJson(JsonParser.parseString(SMART_CAR_JSON).getAsJsonObject()));
+        recorded.step();
+        recorded.setInputLinkJson(SMART_CAR_JSON);
+        recorded.step();
+        recorded.setInputLinkIdea(null);
+        recorded.step();
+        Idea typed = new Idea("INPUT_LINK_IDEA");
+        Idea sensor = new Idea("SENSOR");
+        sensor.add(new Idea("COUNT", 3));
+        sensor.add(new Idea("SPEED", 1.5f));
+        sensor.add(new Idea("ACTIVE", true));
+        sensor.add(new Idea("NAME", "front"));
+        typed.add(sensor);
+        recorded.setInputLinkIdea(typed);
+        recorded.step();
+        recorded.setInputLinkRecorder(null);
+        recorder.close();
+        assertEquals(4, recorder.getRecords());
+
+        InputLinkReplayer replayer = new InputLinkReplayer(new ByteArrayInputStream(log.toByteArray()));
+        assertEquals(4, replayer.size());
+        SOARPlugin replayed = new SOARPlugin("testName", new File("src/test/resources/smartCar.soar"), false);
+        InputLinkReplayer.Report report = replayer.replay(replayed);
+
+        assertEquals(4, report.getCycles());
+        assertEquals(4, report.getLatency().getCount());
+        assertTrue(report.getCyclesPerSecond() > 0);
+        assertEquals(4, replayed.getCycleCount());
+        assertEquals(recorded.getInputLinkAsString(), replayed.getInputLinkAsString());
+        assertEquals(recorded.getOutputLinkAsString(), replayed.getOutputLinkAsString());
+        recorded.stopSOAR();
+        replayed.stopSOAR();
+    }
+
+    @Test
+    public void multiCycleRecordTest() throws IOException {
+        SOARPlugin recorded = new SOARPlugin("testName", new File("src/test/resources/mac.soar"), false);
+        recorded.setPersistentState(true);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        InputLinkRecorder recorder = new InputLinkRecorder(log);
+        recorded.setInputLinkRecorder(recorder);
+
+        Idea input = new Idea("INPUT_LINK_IDEA");
+        input.add(new Idea("COUNT", 3));
+        recorded.setInputLinkIdea(input);
+        assertEquals(3, recorded.step(3));
+        recorded.step();
+        recorder.close();
+        assertEquals(2, recorder.getRecords());
+
+        InputLinkReplayer replayer = new InputLinkReplayer(new ByteArrayInputStream(log.toByteArray()));
+        assertEquals(2, replayer.size());
+        assertEquals(4, replayer.getCycles());
+        SOARPlugin replayed = new SOARPlugin("testName", new File("src/test/resources/mac.soar"), false);
+        replayed.setPersistentState(true);
+        InputLinkReplayer.Report report = replayer.replay(replayed);
+
+        assertEquals(4, report.getCycles());
+        assertEquals(2, report.getLatency().getCount());
+        assertEquals(recorded.getCycleCount(), replayed.getCycleCount());
+        assertEquals(recorded.getOutputLinkAsString(), replayed.getOutputLinkAsString());
+        recorded.stopSOAR();
+        replayed.stopSOAR();
+    }
+
+    @Test
+    public void invalidLogTest() {
+        try {
+            new InputLinkReplayer(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 0, 0, 0, 1}));
+            fail("A log with a wrong header was loaded");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package br.unicamp.cst.bindings.soar;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsTest() {
+        long previous = -1;
+        for (long value : new long[]{0, 1, 31, 32, 63, 64, 1000, 123456789L, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.bucketIndex(value);
+            long highest = LatencyHistogram.highestValueInBucket(index);
+            assertTrue(highest >= value);
+            assertTrue(highest - value <= Math.max(0, value / 16));
+            assertTrue(highest > previous);
+            previous = highest;
+        }
+        assertTrue(LatencyHistogram.bucketIndex(Long.MAX_VALUE) < (65 - 5) * 32);
+    }
+
+    @Test
+    public void percentileTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().getValueAtPercentile(50));
+        for (long i = 1; i <= 1000; i++) histogram.record(i * 1000);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000000, snapshot.getMax());
+        assertEquals(500500.0, snapshot.getMean(), 0.001);
+        assertEquals(500000, snapshot.getValueAtPercentile(50), 500000 * 0.04);
+        assertEquals(990000, snapshot.getValueAtPercentile(99), 990000 * 0.04);
+        assertEquals(1000000, snapshot.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+    }
+}
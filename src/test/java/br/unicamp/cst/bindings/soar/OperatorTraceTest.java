@@ -0,0 +1,43 @@
+package br.unicamp.cst.bindings.soar;
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.symbols.Identifier;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OperatorTraceTest {
+
+    @Test
+    public void drainTest() {
+        Agent agent = new Agent();
+        Identifier goal = agent.getSymbols().createIdentifier('S');
+        Identifier operator = agent.getSymbols().createIdentifier('O');
+
+        OperatorTrace trace = new OperatorTrace(3);
+        assertEquals(4, trace.getCapacity());
+        for (long cycle = 1; cycle <= 3; cycle++) trace.record(cycle, goal, operator);
+
+        List<Long> cycles = new ArrayList<>();
+        assertEquals(3, trace.drain((cycle, g, o) -> cycles.add(cycle)));
+        assertEquals(List.of(1L, 2L, 3L), cycles);
+        assertEquals(0, trace.drain((cycle, g, o) -> cycles.add(cycle)));
+
+        // Readers that fall behind lose the oldest entries
+        cycles.clear();
+        for (long cycle = 4; cycle <= 10; cycle++) trace.record(cycle, goal, operator);
+        assertEquals(4, trace.drain((cycle, g, o) -> cycles.add(cycle)));
+        assertEquals(List.of(7L, 8L, 9L, 10L), cycles);
+        assertEquals(3, trace.getDropped());
+        assertEquals(10, trace.getRecorded());
+
+        cycles.clear();
+        long next = trace.drain(8, (cycle, g, o) -> cycles.add(cycle));
+        assertEquals(10, next);
+        assertEquals(List.of(9L, 10L), cycles);
+        agent.dispose();
+    }
+}
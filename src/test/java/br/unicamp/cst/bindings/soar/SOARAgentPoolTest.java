@@ -0,0 +1,88 @@
+package br.unicamp.cst.bindings.soar;
+
+import br.unicamp.cst.representation.idea.Idea;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SOARAgentPoolTest {
+
+    private static final String INPUT = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+
+    private SOARPlugin createAgent(String name) {
+        SOARPlugin soarPlugin = new SOARPlugin(name, new File("src/test/resources/smartCar.soar"), false);
+        JsonObject jsonInput = JsonParser.parseString(INPUT).getAsJsonObject();
+        soarPlugin.setInputLinkIdea((Idea) soarPlugin.createIdeaFromJson(jsonInput));
+        return soarPlugin;
+    }
+
+    @Test
+    public void runRoundsTest(){
+        SOARAgentPool pool = new SOARAgentPool(2);
+        AtomicInteger beforeCycles = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            SOARAgentPool.PooledAgent agent = pool.addAgent(createAgent("agent" + i), 2);
+            agent.setBeforeCycle(plugin -> beforeCycles.incrementAndGet());
+        }
+
+        assertEquals(24, pool.runRounds(3));
+        assertEquals(24, pool.getTotalCycles());
+        assertEquals(24, beforeCycles.get());
+        assertTrue(pool.getThroughput() > 0);
+
+        String expectedOutput = "(I3,SoarCommandChange,C1)\n" +
+                "   (C1,productionName,change)\n" +
+                "   (C1,quantity,2)\n" +
+                "   (C1,apply,true)\n";
+        for (SOARAgentPool.PooledAgent agent : pool.getAgents()) {
+            assertEquals(6, agent.getCycles());
+            assertEquals(expectedOutput, agent.getPlugin().getOutputLinkAsString());
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void failedCyclesTest(){
+        SOARAgentPool pool = new SOARAgentPool(2);
+        SOARAgentPool.PooledAgent healthy = pool.addAgent(createAgent("healthy"), 2);
+        SOARAgentPool.PooledAgent failing = pool.addAgent(createAgent("failing"), 2);
+        failing.setBeforeCycle(plugin -> {
+            throw new IllegalStateException("No input");
+        });
+
+        // Failed cycles are not counted, and do not stop the other agents
+        assertEquals(4, pool.runRounds(2));
+        assertEquals(4, healthy.getCycles());
+        assertEquals(0, failing.getCycles());
+        assertEquals(4, pool.getTotalCycles());
+        assertEquals(0, failing.getPlugin().getCycleCount());
+        pool.shutdown();
+    }
+
+    @Test
+    public void startStopTest() throws InterruptedException {
+        SOARAgentPool pool = new SOARAgentPool();
+        SOARPlugin soarPlugin = createAgent("agent");
+        pool.addAgent(soarPlugin);
+
+        pool.start();
+        assertTrue(pool.isRunning());
+        Thread.sleep(500L);
+        pool.stop();
+
+        assertFalse(pool.isRunning());
+        long cycles = pool.getTotalCycles();
+        assertTrue(cycles > 0);
+        Thread.sleep(100L);
+        assertEquals(cycles, pool.getTotalCycles());
+
+        assertTrue(pool.removeAgent(soarPlugin));
+        assertEquals(0, pool.runRound());
+        pool.shutdown();
+    }
+}
@@ -5,8 +5,12 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.Production;
 import org.jsoar.kernel.SoarException;
+import org.jsoar.kernel.io.InputOutput;
+import org.jsoar.kernel.memory.Wme;
 import org.jsoar.kernel.symbols.Identifier;
+import org.jsoar.kernel.symbols.SymbolFactory;
 import org.jsoar.util.commands.SoarCommandInterpreter;
 import org.jsoar.util.commands.SoarCommands;
 //import org.junit.Test;
@@ -15,7 +19,18 @@ import org.junit.jupiter.api.Test;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -359,7 +374,860 @@ public class SOARPluginTest {
         inputLinkIdea.add(sensorIdea);
         soarPlugin.setInputLinkIdea(inputLinkIdea);
         soarPlugin.processInputLink();
-        assertEquals("(I2,SENSOR,W2)\n(I2,SCORE,0.0)\n(I2,CREATURE,W1)\n", soarPlugin.getWMEStringInput());
+        assertEquals("(I2,SENSOR,W2)\n(I2,SCORE,0)\n(I2,CREATURE,W1)\n", soarPlugin.getWMEStringInput());
+    }
+
+    @Test
+    public void processInputLinkIncrementalTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        soarPlugin.setIncrementalInputLink(true);
+
+        Idea inputLinkIdea = new Idea("INPUT_LINK_IDEA");
+        Idea creatureIdea = new Idea("CREATURE", "");
+        Idea positionIdea = new Idea("POSITION", 1.0);
+        Idea scoreIdea = new Idea("SCORE", "LOW");
+        creatureIdea.add(positionIdea);
+        inputLinkIdea.add(creatureIdea);
+        inputLinkIdea.add(scoreIdea);
+        soarPlugin.setInputLinkIdea(inputLinkIdea);
+        soarPlugin.processInputLink();
+
+        Wme creatureWme = soarPlugin.searchInInputOutputLinkWME("CREATURE", soarPlugin.getInputLinkIdentifier());
+        Wme scoreWme = soarPlugin.searchInInputOutputLinkWME("SCORE", soarPlugin.getInputLinkIdentifier());
+        assertTrue(soarPlugin.getWMEStringInput().contains("(W1,POSITION,1.0)"));
+
+        positionIdea.setValue(2.0);
+        soarPlugin.processInputLink();
+
+        // Unchanged WMEs are kept, changed ones are updated in place
+        assertSame(creatureWme, soarPlugin.searchInInputOutputLinkWME("CREATURE", soarPlugin.getInputLinkIdentifier()));
+        assertSame(scoreWme, soarPlugin.searchInInputOutputLinkWME("SCORE", soarPlugin.getInputLinkIdentifier()));
+        assertTrue(soarPlugin.getWMEStringInput().contains("(W1,POSITION,2.0)"));
+
+        inputLinkIdea.getL().remove(scoreIdea);
+        inputLinkIdea.add(new Idea("SENSOR", ""));
+        soarPlugin.processInputLink();
+
+        String input = soarPlugin.getWMEStringInput();
+        assertFalse(input.contains("SCORE"));
+        assertTrue(input.contains("(I2,SENSOR,W2)"));
+        assertTrue(input.contains("(I2,CREATURE,W1)"));
+    }
+
+    @Test
+    public void persistentStateStepTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        soarPlugin.setPersistentState(true);
+
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        JsonObject jsonInput = JsonParser.parseString(jsonString).getAsJsonObject();
+        soarPlugin.setInputLinkIdea((Idea)soarPlugin.createIdeaFromJson(jsonInput));
+
+        String expectedOutput = "(I3,SoarCommandChange,C1)\n" +
+                "   (C1,productionName,change)\n" +
+                "   (C1,quantity,2)\n" +
+                "   (C1,apply,true)\n";
+
+        soarPlugin.step();
+        assertEquals(-1, soarPlugin.getPhase());
+        assertEquals(expectedOutput, soarPlugin.getOutputLinkAsString());
+        Identifier inputLink = soarPlugin.getInputLinkIdentifier();
+        Wme perception = soarPlugin.searchInInputOutputLinkWME("CURRENT_PERCEPTION", inputLink);
+
+        // The agent is not initialized again: the command is not issued twice
+        // and the input link is left untouched
+        soarPlugin.step();
+        assertEquals(expectedOutput, soarPlugin.getOutputLinkAsString());
+        assertSame(inputLink, soarPlugin.getInputLinkIdentifier());
+        assertSame(perception, soarPlugin.searchInInputOutputLinkWME("CURRENT_PERCEPTION", inputLink));
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void lazyAndEagerLinkRenderingTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        JsonObject jsonInput = JsonParser.parseString(jsonString).getAsJsonObject();
+
+        String expectedInput = "(I2,CURRENT_PERCEPTION,W1)\n" +
+                "   (W1,CONFIGURATION,W2)\n" +
+                "      (W2,TRAFFIC_LIGHT,W3)\n" +
+                "         (W3,CURRENT_PHASE,W4)\n" +
+                "            (W4,PHASE,RED)\n" +
+                "            (W4,NUMBER,4.0)\n" +
+                "      (W2,SMARTCAR_INFO,NO)\n";
+        String expectedOutput = "(I3,SoarCommandChange,C1)\n" +
+                "   (C1,productionName,change)\n" +
+                "   (C1,quantity,2)\n" +
+                "   (C1,apply,true)\n";
+
+        for (boolean eager : new boolean[]{false, true}) {
+            SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+            soarPlugin.setEagerLinkRendering(eager);
+            soarPlugin.setInputLinkIdea((Idea)soarPlugin.createIdeaFromJson(jsonInput));
+            soarPlugin.step();
+
+            assertEquals(expectedInput, soarPlugin.getInputLinkAsString());
+            assertEquals(expectedOutput, soarPlugin.getOutputLinkAsString());
+            soarPlugin.stopSOAR();
+        }
+    }
+
+    @Test
+    public void outputLinkChangeTrackingTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        soarPlugin.setPersistentState(true);
+
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        JsonObject jsonInput = JsonParser.parseString(jsonString).getAsJsonObject();
+        soarPlugin.setInputLinkIdea((Idea)soarPlugin.createIdeaFromJson(jsonInput));
+
+        soarPlugin.step();
+        assertTrue(soarPlugin.isOutputLinkChanged());
+        Idea outputLinkIdea = soarPlugin.getOutputLinkIdea();
+
+        soarPlugin.step();
+        assertFalse(soarPlugin.isOutputLinkChanged());
+        assertSame(outputLinkIdea, soarPlugin.getOutputLinkIdea());
+
+        jsonInput = JsonParser.parseString(jsonString.replace("RED", "GREEN")).getAsJsonObject();
+        soarPlugin.setInputLinkIdea((Idea)soarPlugin.createIdeaFromJson(jsonInput));
+        soarPlugin.step();
+        assertTrue(soarPlugin.isOutputLinkChanged());
+        assertNotSame(outputLinkIdea, soarPlugin.getOutputLinkIdea());
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void asyncStepTest() throws InterruptedException {
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        JsonObject jsonInput = JsonParser.parseString(jsonString).getAsJsonObject();
+
+        soarPlugin.startAsync();
+        assertTrue(soarPlugin.isAsync());
+        assertNull(soarPlugin.getLatestOutput());
+        soarPlugin.publishInput((Idea)soarPlugin.createIdeaFromJson(jsonInput));
+        awaitAgentThread(soarPlugin);
+
+        SOARSnapshot output = soarPlugin.getLatestOutput();
+        assertNotNull(output);
+        assertEquals(1, output.getCycle());
+        assertEquals("SoarCommandChange", output.getOutputLinkIdea().getL().get(0).getName());
+
+        soarPlugin.stopAsync();
+        assertFalse(soarPlugin.isAsync());
+        assertNull(soarPlugin.getThreaded());
+    }
+
+    @Test
+    public void stopAsyncWhileCycleWaitsTest() throws InterruptedException {
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        Idea input = (Idea) soarPlugin.createIdeaFromJson(JsonParser.parseString(jsonString).getAsJsonObject());
+
+        soarPlugin.startAsync();
+        AtomicReference<Thread> agentThread = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(1);
+        Thread stopper = new Thread(soarPlugin::stopAsync);
+        synchronized (soarPlugin) {
+            soarPlugin.getThreaded().execute(() -> {
+                agentThread.set(Thread.currentThread());
+                started.countDown();
+                return null;
+            }, result -> {});
+            soarPlugin.publishInput(input);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            awaitState(agentThread.get(), Thread.State.BLOCKED); // The cycle waits for the plugin
+            stopper.start();
+            awaitState(stopper, Thread.State.BLOCKED);
+        }
+
+        // Stopping does not wait for the agent thread while holding the plugin
+        stopper.join(5000L);
+        assertFalse(stopper.isAlive());
+        assertFalse(soarPlugin.isAsync());
+
+        // The queued cycle either ran before stopAsync() took the plugin or was
+        // skipped, so the latest output matches the cycles run and stays final
+        SOARSnapshot output = soarPlugin.getLatestOutput();
+        assertEquals(output == null ? 0 : output.getCycle(), soarPlugin.getCycleCount());
+        soarPlugin.stopSOAR();
+    }
+
+    // Waits until everything queued on the agent thread so far has run
+    private static void awaitAgentThread(SOARPlugin soarPlugin) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        soarPlugin.getThreaded().execute(() -> {
+            done.countDown();
+            return null;
+        }, result -> {});
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void awaitState(Thread thread, Thread.State state) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (thread.getState() != state) {
+            assertTrue(thread.getName() + " did not reach " + state, System.nanoTime() < deadline);
+            Thread.yield();
+        }
+    }
+
+    @Test
+    public void multiCycleStepTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        JsonObject jsonInput = JsonParser.parseString(jsonString).getAsJsonObject();
+        soarPlugin.setInputLinkIdea((Idea)soarPlugin.createIdeaFromJson(jsonInput));
+
+        // smartCar.soar interrupts the run in the apply phase of the first
+        // decision cycle, as soon as the command is issued
+        assertEquals(1, soarPlugin.step(5));
+        assertEquals(1, soarPlugin.getCycleCount());
+        assertEquals(-1, soarPlugin.getPhase());
+        String expectedOutput = "(I3,SoarCommandChange,C1)\n" +
+                "   (C1,productionName,change)\n" +
+                "   (C1,quantity,2)\n" +
+                "   (C1,apply,true)\n";
+        assertEquals(expectedOutput, soarPlugin.getOutputLinkAsString());
+        assertEquals("SoarCommandChange", soarPlugin.getOutputLinkIdea().getL().get(0).getName());
+        soarPlugin.stopSOAR();
+
+        SOARPlugin macPlugin = new SOARPlugin("testName", new File("src/test/resources/mac.soar"), false);
+        macPlugin.setPersistentState(true);
+        assertEquals(3, macPlugin.step(3));
+        assertEquals(3, macPlugin.getCycleCount());
+        assertNotNull(macPlugin.getOutputLinkIdea());
+        macPlugin.stopSOAR();
+    }
+
+    private enum Light { RED, GREEN }
+
+    @Test
+    public void processInputLinkTypedValuesTest(){
+        for (boolean incremental : new boolean[]{false, true}) {
+            String soarRulesPath="src/test/resources/mac.soar";
+            SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+            soarPlugin.setIncrementalInputLink(incremental);
+
+            Idea inputLinkIdea = new Idea("INPUT_LINK_IDEA");
+            inputLinkIdea.add(new Idea("COUNT", 3));
+            inputLinkIdea.add(new Idea("TIME", 12L));
+            inputLinkIdea.add(new Idea("SPEED", 1.5f));
+            inputLinkIdea.add(new Idea("ACTIVE", true));
+            inputLinkIdea.add(new Idea("LIGHT", Light.RED));
+            inputLinkIdea.add(new Idea("TEXT", "2.5"));
+            soarPlugin.setInputLinkIdea(inputLinkIdea);
+            soarPlugin.processInputLink();
+
+            Wme count = soarPlugin.searchInInputOutputLinkWME("COUNT", soarPlugin.getInputLinkIdentifier());
+            assertNotNull(count.getValue().asInteger());
+            assertEquals(3, count.getValue().asInteger().getValue());
+            Wme time = soarPlugin.searchInInputOutputLinkWME("TIME", soarPlugin.getInputLinkIdentifier());
+            assertEquals(12, time.getValue().asInteger().getValue());
+            Wme speed = soarPlugin.searchInInputOutputLinkWME("SPEED", soarPlugin.getInputLinkIdentifier());
+            assertEquals(1.5, speed.getValue().asDouble().getValue(), 1e-9);
+            Wme active = soarPlugin.searchInInputOutputLinkWME("ACTIVE", soarPlugin.getInputLinkIdentifier());
+            assertEquals("true", active.getValue().asString().getValue());
+            Wme light = soarPlugin.searchInInputOutputLinkWME("LIGHT", soarPlugin.getInputLinkIdentifier());
+            assertEquals("RED", light.getValue().asString().getValue());
+            Wme text = soarPlugin.searchInInputOutputLinkWME("TEXT", soarPlugin.getInputLinkIdentifier());
+            assertEquals(2.5, text.getValue().asDouble().getValue(), 1e-9);
+            assertSame(count.getAttribute(), soarPlugin.getAgent().getSymbols().createString("COUNT"));
+            soarPlugin.stopSOAR();
+        }
+    }
+
+    @Test
+    public void processInputLinkJsonTest(){
+        String jsonString = "{\"InputLink\":{\"SENSORS\":[{\"ID\":1,\"ON\":true},{\"ID\":\"2\"}],\"EMPTY\":{},\"MARK\":\"\",\"TAGS\":[\"A\",\"B\"],\"NOTHING\":null}}";
+        for (boolean incremental : new boolean[]{false, true}) {
+            SOARPlugin ideaPlugin = new SOARPlugin("testName", new File("src/test/resources/mac.soar"), false);
+            ideaPlugin.setIncrementalInputLink(incremental);
+            ideaPlugin.setInputLinkIdea((Idea) ideaPlugin.createIdeaFromJson(JsonParser.parseString(jsonString).getAsJsonObject()));
+            ideaPlugin.processInputLink();
+
+            SOARPlugin jsonPlugin = new SOARPlugin("testName", new File("src/test/resources/mac.soar"), false);
+            jsonPlugin.setIncrementalInputLink(incremental);
+            jsonPlugin.setInputLinkJson(jsonString);
+            jsonPlugin.processInputLink();
+            assertEquals(ideaPlugin.getWMEStringInput(), jsonPlugin.getWMEStringInput());
+            assertTrue(jsonPlugin.getWMEStringInput().contains("MARK"));
+            assertFalse(jsonPlugin.getWMEStringInput().contains("EMPTY"));
+
+            jsonPlugin.setInputLinkJson("{\"InputLink\":{\"TAGS\":[\"A\"]}}");
+            jsonPlugin.processInputLink();
+            assertEquals("(I2,TAGS,A)\n", jsonPlugin.getWMEStringInput());
+            ideaPlugin.stopSOAR();
+            jsonPlugin.stopSOAR();
+        }
+
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        soarPlugin.setInputLinkJson("{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}");
+        soarPlugin.step();
+        String expectedOutput = "(I3,SoarCommandChange,C1)\n" +
+                "   (C1,productionName,change)\n" +
+                "   (C1,quantity,2)\n" +
+                "   (C1,apply,true)\n";
+        assertEquals(expectedOutput, soarPlugin.getOutputLinkAsString());
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void writeOutputLinkTest() throws Exception {
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        soarPlugin.setInputLinkJson(jsonString);
+        soarPlugin.step();
+
+        String expectedJson = "{\"SoarCommandChange\":{\"productionName\":\"change\",\"quantity\":2,\"apply\":\"true\"}}";
+        StringBuilder json = new StringBuilder();
+        soarPlugin.writeOutputLinkJson(json);
+        assertEquals(expectedJson, json.toString());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        soarPlugin.writeOutputLinkJson(bytes);
+        assertEquals(expectedJson, bytes.toString("UTF-8"));
+
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        int written = soarPlugin.writeOutputLink(buffer);
+        assertEquals(buffer.position(), written);
+        assertEquals(OutputLinkWriter.TAG_OBJECT, buffer.get(0));
+        assertEquals(1, buffer.getInt(1));
+        assertEquals("SoarCommandChange".length(), buffer.getInt(5));
+        assertEquals(OutputLinkWriter.TAG_OBJECT, buffer.get(9 + "SoarCommandChange".length()));
+        soarPlugin.stopSOAR();
+
+        SOARPlugin repeated = new SOARPlugin("testName", new File("src/test/resources/mac.soar"), false);
+        Identifier ol = repeated.getOutputLinkIdentifier();
+        SymbolFactory sf = repeated.getAgent().getSymbols();
+        repeated.getAgent().getInputOutput().addInputWme(ol, sf.createString("tag"), sf.createString("a\"b"));
+        repeated.getAgent().getInputOutput().addInputWme(ol, sf.createString("size"), sf.createDouble(1.5));
+        repeated.getAgent().getInputOutput().addInputWme(ol, sf.createString("tag"), sf.createString("c"));
+        json = new StringBuilder();
+        repeated.writeOutputLinkJson(json);
+        assertTrue(json.toString().contains("\"tag\":[\""));
+        assertTrue(json.toString().contains("\"size\":1.5"));
+        assertTrue(json.toString().contains("a\\\"b"));
+        repeated.stopSOAR();
+    }
+
+    @Test
+    public void writeSharedOutputLinkTest() throws Exception {
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File("src/test/resources/mac.soar"), false);
+        Identifier ol = soarPlugin.getOutputLinkIdentifier();
+        SymbolFactory sf = soarPlugin.getAgent().getSymbols();
+        InputOutput io = soarPlugin.getAgent().getInputOutput();
+        // Each node references the next one twice and the last one points back to the output link
+        Identifier node = sf.createIdentifier('N');
+        io.addInputWme(ol, sf.createString("root"), node);
+        for (int i = 0; i < 30; i++) {
+            Identifier next = sf.createIdentifier('N');
+            io.addInputWme(node, sf.createString("left"), next);
+            io.addInputWme(node, sf.createString("right"), next);
+            node = next;
+        }
+        io.addInputWme(node, sf.createString("back"), ol);
+
+        StringBuilder json = new StringBuilder();
+        soarPlugin.writeOutputLinkJson(json);
+        assertTrue(json.length() < 4096);
+        assertTrue(json.toString().contains("\"back\":\"" + ol + "\""));
+        assertTrue(json.toString().contains("\"" + node + "\""));
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        assertEquals(buffer.position(), soarPlugin.writeOutputLink(buffer));
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void reloadRulesTest() throws Exception {
+        File rules = File.createTempFile("rules", ".soar");
+        rules.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(rules, "UTF-8")) {
+            out.println("sp {keep (state <s> ^superstate nil) --> (<s> ^a 1)}");
+            out.println("sp {change (state <s> ^superstate nil) --> (<s> ^b 1)}");
+            out.println("sp {remove (state <s> ^superstate nil) --> (<s> ^c 1)}");
+        }
+        SOARPlugin soarPlugin = new SOARPlugin("testName", rules, false);
+        Idea inputLinkIdea = new Idea("INPUT_LINK_IDEA");
+        inputLinkIdea.add(new Idea("SCORE", "LOW"));
+        soarPlugin.setInputLinkIdea(inputLinkIdea);
+        soarPlugin.processInputLink();
+        Production keep = soarPlugin.getAgent().getProductions().getProduction("keep");
+        Production change = soarPlugin.getAgent().getProductions().getProduction("change");
+
+        try (PrintWriter out = new PrintWriter(rules, "UTF-8")) {
+            out.println("sp {keep   (state <s> ^superstate nil)\n--> (<s> ^a 1)}");
+            out.println("sp {change (state <s> ^superstate nil) --> (<s> ^b 2)}");
+            out.println("sp {add (state <s> ^superstate nil) --> (<s> ^d 1)}");
+        }
+        assertEquals(3, soarPlugin.reloadRules(rules.getPath()));
+        assertSame(keep, soarPlugin.getAgent().getProductions().getProduction("keep"));
+        assertNotSame(change, soarPlugin.getAgent().getProductions().getProduction("change"));
+        assertNull(soarPlugin.getAgent().getProductions().getProduction("remove"));
+        assertNotNull(soarPlugin.getAgent().getProductions().getProduction("add"));
+        assertEquals("(I2,SCORE,LOW)\n", soarPlugin.getWMEStringInput());
+        assertEquals(0, soarPlugin.reloadRules(rules.getPath()));
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void reloadOneOfTwoRuleFilesTest() throws Exception {
+        File first = File.createTempFile("first", ".soar");
+        first.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(first, "UTF-8")) {
+            out.println("sp {first (state <s> ^superstate nil) --> (<s> ^a 1)}");
+        }
+        File second = File.createTempFile("second", ".soar");
+        second.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(second, "UTF-8")) {
+            out.println("sp {second (state <s> ^superstate nil) --> (<s> ^b |x  y|)}");
+        }
+        SOARPlugin soarPlugin = new SOARPlugin("testName", first, false);
+        soarPlugin.loadRules(second.getPath());
+        Production firstProduction = soarPlugin.getAgent().getProductions().getProduction("first");
+        assertNotNull(firstProduction);
+        assertNotNull(soarPlugin.getAgent().getProductions().getProduction("second"));
+
+        // Only whitespace inside the quoted constant changes
+        try (PrintWriter out = new PrintWriter(second, "UTF-8")) {
+            out.println("sp {second   (state <s> ^superstate nil)\n--> (<s> ^b |x y|)}");
+        }
+        assertEquals(1, soarPlugin.reloadRules(second.getPath()));
+        assertSame(firstProduction, soarPlugin.getAgent().getProductions().getProduction("first"));
+        assertNotNull(soarPlugin.getAgent().getProductions().getProduction("second"));
+
+        try (PrintWriter out = new PrintWriter(second, "UTF-8")) {
+            out.println("sp {third (state <s> ^superstate nil) --> (<s> ^c 1)}");
+        }
+        assertEquals(2, soarPlugin.reloadRules(second.getPath()));
+        assertSame(firstProduction, soarPlugin.getAgent().getProductions().getProduction("first"));
+        assertNull(soarPlugin.getAgent().getProductions().getProduction("second"));
+        assertNotNull(soarPlugin.getAgent().getProductions().getProduction("third"));
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void reloadRulesFailureTest() throws Exception {
+        File rules = File.createTempFile("rules", ".soar");
+        rules.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(rules, "UTF-8")) {
+            out.println("sp {change (state <s> ^superstate nil) --> (<s> ^b 1)}");
+            out.println("sp {remove (state <s> ^superstate nil) --> (<s> ^c 1)}");
+        }
+        SOARPlugin soarPlugin = new SOARPlugin("testName", rules, false);
+        Production change = soarPlugin.getAgent().getProductions().getProduction("change");
+        Production remove = soarPlugin.getAgent().getProductions().getProduction("remove");
+
+        // The change read before the error is reloaded, but nothing is excised
+        try (PrintWriter out = new PrintWriter(rules, "UTF-8")) {
+            out.println("sp {change (state <s> ^superstate nil) --> (<s> ^b 2)}");
+            out.println("sp {broken (state <s> ^superstate nil) -->");
+        }
+        assertEquals(1, soarPlugin.reloadRules(rules.getPath()));
+        assertNotSame(change, soarPlugin.getAgent().getProductions().getProduction("change"));
+        assertSame(remove, soarPlugin.getAgent().getProductions().getProduction("remove"));
+        assertNull(soarPlugin.getAgent().getProductions().getProduction("broken"));
+        assertEquals(1, soarPlugin.getReloadFailures().size());
+
+        try (PrintWriter out = new PrintWriter(rules, "UTF-8")) {
+            out.println("sp {change (state <s> ^superstate nil) --> (<s> ^b 2)}");
+        }
+        assertEquals(1, soarPlugin.reloadRules(rules.getPath()));
+        assertNull(soarPlugin.getAgent().getProductions().getProduction("remove"));
+        assertTrue(soarPlugin.getReloadFailures().isEmpty());
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void pathIndexTest(){
+        for (boolean incremental : new boolean[]{false, true}) {
+            String soarRulesPath="src/test/resources/smartCar.soar";
+            SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+            soarPlugin.setIncrementalInputLink(incremental);
+            String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}},\"A\":1,\"B\":2,\"C\":3}}";
+            soarPlugin.setInputLinkIdea((Idea) soarPlugin.createIdeaFromJson(JsonParser.parseString(jsonString).getAsJsonObject()));
+            soarPlugin.step();
+
+            Identifier trafficLight = soarPlugin.searchInputLinkPath("CURRENT_PERCEPTION.CONFIGURATION.TRAFFIC_LIGHT");
+            assertNotNull(trafficLight);
+            assertEquals("NO", soarPlugin.searchInputLinkPathValue("CURRENT_PERCEPTION.CONFIGURATION.SMARTCAR_INFO"));
+            assertEquals(4.0, soarPlugin.searchInputLinkPathValue("CURRENT_PERCEPTION.CONFIGURATION.TRAFFIC_LIGHT.CURRENT_PHASE.NUMBER"));
+            assertNull(soarPlugin.searchInputLinkPath("CURRENT_PERCEPTION.MISSING"));
+            Wme phase = soarPlugin.searchInputLinkPathWME("CURRENT_PERCEPTION.CONFIGURATION.TRAFFIC_LIGHT.CURRENT_PHASE.PHASE");
+            assertEquals("RED", phase.getValue().toString());
+            Wme light = soarPlugin.searchInputLinkPathWME("CURRENT_PERCEPTION.CONFIGURATION.TRAFFIC_LIGHT");
+            assertSame(trafficLight, light.getValue());
+
+            // A match in a nested branch is no longer overwritten by the siblings after it
+            assertNotNull(soarPlugin.searchInInputOutputLinkWME("SMARTCAR_INFO", soarPlugin.getInputLinkIdentifier()));
+            assertTrue(soarPlugin.containsWme(soarPlugin.getInputLink_WME(), "PHASE"));
+
+            Wme quantity = soarPlugin.searchOutputLinkPathWME("SoarCommandChange.quantity");
+            assertEquals("2", quantity.getValue().toString());
+            assertNull(soarPlugin.searchOutputLinkPathWME("SoarCommandChange.missing"));
+            soarPlugin.stopSOAR();
+        }
+    }
+
+    @Test
+    public void pathIndexRepeatedAttributeTest(){
+        for (boolean incremental : new boolean[]{false, true}) {
+            SOARPlugin soarPlugin = new SOARPlugin("testName", new File("src/test/resources/smartCar.soar"), false);
+            soarPlugin.setIncrementalInputLink(incremental);
+            Idea inputLinkIdea = new Idea("INPUT_LINK_IDEA");
+            inputLinkIdea.add(new Idea("ITEM", 1));
+            inputLinkIdea.add(new Idea("ITEM", 2));
+            Idea sensor = new Idea("SENSOR");
+            sensor.add(new Idea("ITEM", 3));
+            inputLinkIdea.add(sensor);
+            soarPlugin.setInputLinkIdea(inputLinkIdea);
+            soarPlugin.step();
+
+            assertEquals(4, soarPlugin.getInputLinkWmeCount());
+            // The WME and the value come from the same one of the repeated attributes
+            Wme item = soarPlugin.searchInputLinkPathWME("ITEM");
+            assertEquals(String.valueOf(soarPlugin.searchInputLinkPathValue("ITEM")), item.getValue().toString());
+            assertEquals("3", soarPlugin.searchInputLinkPathWME("SENSOR.ITEM").getValue().toString());
+            assertSame(soarPlugin.searchInputLinkPath("SENSOR"), soarPlugin.searchInputLinkPathWME("SENSOR").getValue());
+            soarPlugin.stopSOAR();
+        }
+    }
+
+    @Test
+    public void latencySnapshotTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        soarPlugin.setInputLinkJson(jsonString);
+        soarPlugin.step();
+        soarPlugin.step();
+
+        Map<CycleStage, LatencyHistogram.Snapshot> latencies = soarPlugin.getLatencySnapshot();
+        assertEquals(2, latencies.get(CycleStage.INPUT_CONVERSION).getCount());
+        assertEquals(2, latencies.get(CycleStage.PROPOSE).getCount());
+        assertEquals(2, latencies.get(CycleStage.APPLY).getCount());
+        assertEquals(2, latencies.get(CycleStage.OUTPUT_MATERIALIZATION).getCount());
+
+        soarPlugin.resetLatencies();
+        soarPlugin.setTimingEnabled(false);
+        soarPlugin.step();
+        assertEquals(0, soarPlugin.getLatencySnapshot().get(CycleStage.PROPOSE).getCount());
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void operatorTraceTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        soarPlugin.setOperatorTrace(new OperatorTrace(16));
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        soarPlugin.setInputLinkJson(jsonString);
+        soarPlugin.step();
+        soarPlugin.step();
+        assertEquals(2, soarPlugin.getCycleCount());
+
+        List<String> names = new ArrayList<>();
+        List<Long> cycles = new ArrayList<>();
+        int drained = soarPlugin.getOperatorTrace().drain((cycle, goal, operator) -> {
+            cycles.add(cycle);
+            Wme name = soarPlugin.searchInInputOutputLinkWME("name", operator);
+            names.add(name.getValue().toString());
+        });
+        assertEquals(2, drained);
+        assertEquals(List.of(1L, 2L), cycles);
+        assertEquals(List.of("change", "change"), names);
+        assertTrue(soarPlugin.getOperatorsPathList().isEmpty());
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void cycleSnapshotTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        assertNull(soarPlugin.getCycleSnapshot());
+        assertTrue(soarPlugin.isLinkStringsInSnapshots());
+        soarPlugin.setLinkStringsInSnapshots(false);
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        soarPlugin.setInputLinkJson(jsonString);
+        soarPlugin.step();
+
+        SOARSnapshot snapshot = soarPlugin.getCycleSnapshot();
+        assertEquals(1, snapshot.getCycle());
+        assertEquals(-1, snapshot.getPhase());
+        assertTrue(snapshot.isOutputLinkChanged());
+        assertSame(soarPlugin.getOutputLinkIdea(), snapshot.getOutputLinkIdea());
+        assertNull(snapshot.getOutputLinkAsString());
+
+        soarPlugin.setLinkStringsInSnapshots(true);
+        soarPlugin.mstep();
+        snapshot = soarPlugin.getCycleSnapshot();
+        assertEquals(soarPlugin.getPhase(), snapshot.getPhase());
+        assertEquals(soarPlugin.getInputLinkAsString(), snapshot.getInputLinkAsString());
+        soarPlugin.finish_msteps();
+        soarPlugin.processOutputLink();
+        soarPlugin.step();
+        String expectedOutput = "(I3,SoarCommandChange,C1)\n" +
+                "   (C1,productionName,change)\n" +
+                "   (C1,quantity,2)\n" +
+                "   (C1,apply,true)\n";
+        assertEquals(expectedOutput, soarPlugin.getCycleSnapshot().getOutputLinkAsString());
+        assertEquals(3, soarPlugin.getCycleSnapshot().getCycle());
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void budgetedStepTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        soarPlugin.setInputLinkJson(jsonString);
+        String expectedOutput = "(I3,SoarCommandChange,C1)\n" +
+                "   (C1,productionName,change)\n" +
+                "   (C1,quantity,2)\n" +
+                "   (C1,apply,true)\n";
+
+        // With no budget, a single phase runs per call and the cycle resumes on
+        // the next one: input, propose and decision, then apply, where
+        // smartCar.soar interrupts the run and the cycle completes
+        assertFalse(soarPlugin.step(Duration.ZERO));
+        assertEquals(1, soarPlugin.getPhase());
+        assertFalse(soarPlugin.step(Duration.ZERO));
+        assertEquals(2, soarPlugin.getPhase());
+        assertFalse(soarPlugin.step(Duration.ZERO));
+        assertEquals(3, soarPlugin.getPhase());
+        assertEquals(0, soarPlugin.getCycleCount());
+        assertTrue(soarPlugin.step(Duration.ZERO));
+        assertEquals(-1, soarPlugin.getPhase());
+        assertEquals(1, soarPlugin.getCycleCount());
+        assertEquals(expectedOutput, soarPlugin.getOutputLinkAsString());
+
+        // With a budget, as many phases run per call as fit in it. However long
+        // they take, every call moves the cycle on by at least one phase, so it
+        // completes within four calls whatever the machine
+        int calls = 1;
+        int lastPhase = 0;
+        while (!soarPlugin.step(Duration.ofMillis(50))) {
+            assertTrue(soarPlugin.getPhase() > lastPhase);
+            assertTrue(soarPlugin.getPhase() <= 3);
+            assertEquals(1, soarPlugin.getCycleCount());
+            lastPhase = soarPlugin.getPhase();
+            calls++;
+        }
+        assertTrue(calls <= 4);
+        assertEquals(-1, soarPlugin.getPhase());
+        assertEquals(2, soarPlugin.getCycleCount());
+        assertEquals(expectedOutput, soarPlugin.getOutputLinkAsString());
+        soarPlugin.stopSOAR();
+    }
+
+    private static Wme findWme(Identifier id, String attribute) {
+        Iterator<Wme> it = id.getWmes();
+        while (it.hasNext()) {
+            Wme wme = it.next();
+            if (wme.getAttribute().toString().equals(attribute)) return wme;
+        }
+        return null;
+    }
+
+    @Test
+    public void checkpointTest() throws IOException {
+        File checkpoint = Files.createTempFile("cst-checkpoint", ".bin").toFile();
+        checkpoint.deleteOnExit();
+
+        SOARPlugin macPlugin = new SOARPlugin("testName", new File("src/test/resources/mac.soar"), false);
+        macPlugin.setPersistentState(true);
+        macPlugin.step(3);
+        Identifier leftBank = findWme(macPlugin.getInitialState(), "left-bank").getValue().asIdentifier();
+        String missionaries = findWme(leftBank, "missionaries").getValue().toString();
+        String cannibals = findWme(leftBank, "cannibals").getValue().toString();
+        int saved = macPlugin.saveCheckpoint(checkpoint);
+        assertTrue(saved > 0);
+        macPlugin.stopSOAR();
+
+        SOARPlugin restored = new SOARPlugin("testName", new File("src/test/resources/mac.soar"), false);
+        restored.setPersistentState(true);
+        assertEquals(saved, restored.restoreCheckpoint(checkpoint));
+        assertEquals(macPlugin.getCycleCount(), restored.getCycleCount());
+
+        Identifier state = restored.getInitialState();
+        assertEquals("mac", findWme(state, "name").getValue().toString());
+        Identifier restoredLeftBank = findWme(state, "left-bank").getValue().asIdentifier();
+        assertEquals(missionaries, findWme(restoredLeftBank, "missionaries").getValue().toString());
+        assertEquals(cannibals, findWme(restoredLeftBank, "cannibals").getValue().toString());
+        // Shared identifiers are restored as one identifier
+        Identifier rightBank = findWme(state, "right-bank").getValue().asIdentifier();
+        assertSame(rightBank, findWme(restoredLeftBank, "other-bank").getValue().asIdentifier());
+
+        assertNull(restored.getAgent().getProductions().getProduction("cst*restore*checkpoint*propose"));
+        assertNull(restored.getAgent().getProductions().getProduction("cst*restore*checkpoint*apply"));
+
+        // The agent carries on from the restored state instead of initializing again
+        assertEquals(1, restored.step(1));
+        assertSame(state, restored.getInitialState());
+        assertEquals("mac", findWme(state, "name").getValue().toString());
+        restored.stopSOAR();
+
+        Files.write(checkpoint.toPath(), new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        SOARPlugin corrupt = new SOARPlugin("testName", new File("src/test/resources/mac.soar"), false);
+        try {
+            corrupt.restoreCheckpoint(checkpoint);
+            fail("A corrupt checkpoint was restored");
+        } catch (IOException e) {
+            // Expected
+        }
+        corrupt.stopSOAR();
+    }
+
+    @Test
+    public void commandHandlerTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        soarPlugin.setPersistentState(true);
+        soarPlugin.setInputLinkJson(jsonString);
+
+        List<SoarCommandChange> changes = new ArrayList<>();
+        List<Identifier> identifiers = new ArrayList<>();
+        soarPlugin.addCommandHandler(SoarCommandChange.class, (id, change) -> {
+            identifiers.add(id);
+            changes.add(change);
+        });
+        List<Object> byName = new ArrayList<>();
+        SoarCommandHandler<Object> nameHandler = (id, bean) -> byName.add(bean);
+        soarPlugin.addCommandHandler("SoarCommandChange", "br.unicamp.cst.bindings.soar", nameHandler);
+        List<Object> keeps = new ArrayList<>();
+        soarPlugin.addCommandHandler("SoarCommandKeep", "br.unicamp.cst.bindings.soar", (id, bean) -> keeps.add(bean));
+
+        soarPlugin.step();
+        assertEquals(1, changes.size());
+        assertEquals("change", changes.get(0).getProductionName());
+        assertEquals(2.0, changes.get(0).getQuantity(), 0);
+        assertEquals("true", changes.get(0).isApply());
+        assertSame(soarPlugin.searchOutputLinkPathWME("SoarCommandChange").getValue(), identifiers.get(0));
+        assertEquals(1, byName.size());
+        assertTrue(byName.get(0) instanceof SoarCommandChange);
+        assertTrue(keeps.isEmpty());
+
+        // The command stays on the output link: it is not dispatched again
+        soarPlugin.step();
+        assertEquals(1, changes.size());
+
+        assertTrue(soarPlugin.removeCommandHandler(nameHandler));
+        assertFalse(soarPlugin.removeCommandHandler(nameHandler));
+        soarPlugin.stopSOAR();
+
+        // Without persistent state the agent issues a new command every step
+        soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        soarPlugin.setInputLinkJson(jsonString);
+        List<Object> issued = new ArrayList<>();
+        soarPlugin.addCommandHandler(SoarCommandChange.class, (id, change) -> issued.add(change));
+        soarPlugin.step();
+        soarPlugin.step();
+        assertEquals(2, issued.size());
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void autoAcknowledgeCommandsTest(){
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File("src/test/resources/smartCarAck.soar"), false);
+        soarPlugin.setPersistentState(true);
+        soarPlugin.setAutoAcknowledgeCommands(true);
+        soarPlugin.setInputLinkJson(jsonString);
+
+        soarPlugin.step();
+        assertEquals(1, soarPlugin.getAcknowledgedCommandCount());
+        assertTrue(soarPlugin.getOutputLinkAsString().contains("(C1,status,complete)"));
+
+        // The rules remove the completed command, and the plugin its status
+        soarPlugin.step();
+        assertNull(soarPlugin.searchOutputLinkPathWME("SoarCommandChange"));
+        assertEquals(0, soarPlugin.getAcknowledgedCommandCount());
+        assertFalse(soarPlugin.getOutputLinkAsString().contains("status"));
+        soarPlugin.stopSOAR();
+
+        // Without rules removing them, commands are acknowledged only once
+        soarPlugin = new SOARPlugin("testName", new File("src/test/resources/smartCar.soar"), false);
+        soarPlugin.setPersistentState(true);
+        soarPlugin.setInputLinkJson(jsonString);
+        soarPlugin.step();
+        assertEquals(0, soarPlugin.getAcknowledgedCommandCount());
+        Identifier command = soarPlugin.searchOutputLinkPathWME("SoarCommandChange").getValue().asIdentifier();
+        assertTrue(soarPlugin.acknowledgeCommand(command));
+        assertFalse(soarPlugin.acknowledgeCommand(command));
+        soarPlugin.step();
+        assertEquals(1, soarPlugin.getAcknowledgedCommandCount());
+        assertEquals("complete", soarPlugin.searchOutputLinkPathWME("SoarCommandChange.status").getValue().toString());
+        soarPlugin.stopSOAR();
+    }
+
+    @Test
+    public void inputLinkGaugesTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        for (boolean incremental : new boolean[]{false, true}) {
+            SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+            soarPlugin.setIncrementalInputLink(incremental);
+            assertEquals(0, soarPlugin.getInputLinkWmeCount());
+            soarPlugin.setInputLinkJson(jsonString);
+            soarPlugin.step();
+
+            // CURRENT_PERCEPTION, CONFIGURATION, TRAFFIC_LIGHT, SMARTCAR_INFO, CURRENT_PHASE, PHASE, NUMBER
+            assertEquals(7, soarPlugin.getInputLinkWmeCount());
+            assertTrue(soarPlugin.getReteWmeCount() >= 7);
+            assertTrue(soarPlugin.getIdentifierCount() > 0);
+            assertTrue(soarPlugin.getSymbolTableSize() >= soarPlugin.getIdentifierCount());
+
+            soarPlugin.setInputLinkJson("{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"SMARTCAR_INFO\":\"NO\"}}}}");
+            soarPlugin.step();
+            assertEquals(3, soarPlugin.getInputLinkWmeCount());
+            soarPlugin.stopSOAR();
+        }
+    }
+
+    @Test
+    public void inputLinkLimitTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}},\"A\":1,\"B\":{\"C\":2}}}";
+        for (boolean json : new boolean[]{false, true}) {
+            SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+            soarPlugin.setIncrementalInputLink(true);
+            soarPlugin.setInputLinkWmeLimit(7, InputLinkLimitPolicy.WARN);
+            if (json) soarPlugin.setInputLinkJson(jsonString);
+            else soarPlugin.setInputLinkIdea((Idea) soarPlugin.createIdeaFromJson(JsonParser.parseString(jsonString).getAsJsonObject()));
+            soarPlugin.step();
+            assertEquals(10, soarPlugin.getInputLinkWmeCount());
+            assertEquals(0, soarPlugin.getRejectedInputWmes());
+            soarPlugin.stopSOAR();
+
+            soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+            soarPlugin.setIncrementalInputLink(true);
+            soarPlugin.setInputLinkWmeLimit(7, InputLinkLimitPolicy.REJECT);
+            if (json) soarPlugin.setInputLinkJson(jsonString);
+            else soarPlugin.setInputLinkIdea((Idea) soarPlugin.createIdeaFromJson(JsonParser.parseString(jsonString).getAsJsonObject()));
+            soarPlugin.step();
+
+            // A and B are left out, the agent still sees the rest of the input link
+            assertEquals(7, soarPlugin.getInputLinkWmeCount());
+            assertEquals(2, soarPlugin.getRejectedInputWmes());
+            assertNull(soarPlugin.searchInputLinkPathWME("A"));
+            assertNull(soarPlugin.searchInputLinkPathWME("B"));
+            assertEquals("NO", soarPlugin.searchInputLinkPathValue("CURRENT_PERCEPTION.CONFIGURATION.SMARTCAR_INFO"));
+            assertEquals("2", soarPlugin.searchOutputLinkPathWME("SoarCommandChange.quantity").getValue().toString());
+            soarPlugin.stopSOAR();
+        }
     }
 
     @Test
@@ -527,6 +1395,28 @@ public class SOARPluginTest {
         soarPlugin.stopSOAR();
     }
 
+    @Test
+    public void getStatesTest(){
+        String soarRulesPath="src/test/resources/smartCar.soar";
+        SOARPlugin soarPlugin = new SOARPlugin("testName", new File(soarRulesPath), false);
+        soarPlugin.setPersistentState(true);
+
+        String jsonString = "{\"InputLink\":{\"CURRENT_PERCEPTION\":{\"CONFIGURATION\":{\"TRAFFIC_LIGHT\":{\"CURRENT_PHASE\":{\"PHASE\":\"RED\",\"NUMBER\":4.0}},\"SMARTCAR_INFO\":\"NO\"}}}}";
+        JsonObject jsonInput = JsonParser.parseString(jsonString).getAsJsonObject();
+        soarPlugin.setInputLinkIdea((Idea)soarPlugin.createIdeaFromJson(jsonInput));
+        soarPlugin.step();
+        soarPlugin.step();
+
+        List<Identifier> states = soarPlugin.getStates();
+        assertFalse(states.isEmpty());
+        assertEquals("S1", states.get(0).toString());
+        for (Identifier state : states) {
+            assertTrue(state.isGoal());
+        }
+        assertSame(states.get(0), soarPlugin.getInitialState());
+        soarPlugin.stopSOAR();
+    }
+
     @Test
     public void searchInputLinkTest(){
         String soarRulesPath="src/test/resources/smartCar.soar";
@@ -0,0 +1,93 @@
+package br.unicamp.cst.bindings.soar;
+
+import br.unicamp.cst.representation.idea.Idea;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SoarBeanMapperTest {
+
+    public record SoarCommandMove(String direction, int speed, boolean urgent) {
+    }
+
+    public static class SoarCommandRoute {
+        SoarCommandChange[] changes;
+        List<Object> nested;
+        long length;
+    }
+
+    private static final String PACKAGE = "br.unicamp.cst.bindings.soar";
+
+    private Idea changeCommand(long quantity) {
+        Idea command = new Idea("SoarCommandChange", "");
+        command.add(new Idea("productionName", "change"));
+        command.add(new Idea("quantity", quantity));
+        command.add(new Idea("apply", "true"));
+        return command;
+    }
+
+    @Test
+    public void buildPlainBeanTest(){
+        Object object = SoarBeanMapper.buildObject(changeCommand(2), PACKAGE);
+
+        assertTrue(object instanceof SoarCommandChange);
+        assertEquals("change", ((SoarCommandChange) object).getProductionName());
+        assertEquals(2, ((SoarCommandChange) object).getQuantity(), 0);
+        assertEquals("true", ((SoarCommandChange) object).isApply());
+        assertSame(SoarBeanMapper.forName(PACKAGE + ".SoarCommandChange"), SoarBeanMapper.forClass(SoarCommandChange.class));
+    }
+
+    @Test
+    public void buildRecordTest(){
+        Idea command = new Idea("SoarCommandMove", "");
+        command.add(new Idea("direction", "north"));
+        command.add(new Idea("speed", 3.0));
+        command.add(new Idea("urgent", "true"));
+
+        Object object = SoarBeanMapper.forClass(SoarCommandMove.class).build(command, PACKAGE);
+
+        assertEquals(new SoarCommandMove("north", 3, true), object);
+    }
+
+    @Test
+    public void buildArrayTest(){
+        Idea array = new Idea("SoarCommandARRAY", "");
+        array.add(changeCommand(1));
+        array.add(changeCommand(2));
+
+        Object object = SoarBeanMapper.buildObject(array, PACKAGE);
+
+        assertTrue(object instanceof List);
+        assertEquals(2, ((List<?>) object).size());
+        assertEquals(2, ((SoarCommandChange) ((List<?>) object).get(1)).getQuantity(), 0);
+        assertNull(SoarBeanMapper.buildObject(new Idea("SoarCommandARRAY", ""), PACKAGE));
+    }
+
+    @Test
+    public void buildMultiValuedFieldsTest(){
+        Idea command = new Idea("SoarCommandRoute", "");
+        Idea changes = new Idea("changes", "");
+        changes.add(changeCommand(1));
+        changes.add(changeCommand(2));
+        Idea nested = new Idea("nested", "");
+        nested.add(changeCommand(3));
+        command.add(changes);
+        command.add(nested);
+        command.add(new Idea("length", 10.0));
+
+        SoarCommandRoute route = (SoarCommandRoute) SoarBeanMapper.forClass(SoarCommandRoute.class).build(command, PACKAGE);
+
+        assertEquals(2, route.changes.length);
+        assertEquals(1, route.changes[0].getQuantity(), 0);
+        assertEquals(1, route.nested.size());
+        assertEquals(10, route.length);
+    }
+
+    @Test
+    public void unknownClassTest(){
+        assertNull(SoarBeanMapper.forName(PACKAGE + ".SOARCommandChange"));
+        assertNull(SoarBeanMapper.buildObject(changeCommand(2), "br.unicamp.cst.bindings.ros"));
+    }
+}